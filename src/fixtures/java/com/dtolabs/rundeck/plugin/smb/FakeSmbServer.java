@@ -0,0 +1,673 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.Endian;
+import com.hierynomus.protocol.transport.PacketHandlers;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.protocol.transport.TransportLayer;
+import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.smb.SMBPacket;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.transport.TransportLayerFactory;
+import com.hierynomus.spnego.NegTokenTarg;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * FakeSmbServer is an in-process stand-in for an SMB2 file server, plugged into smbj as its transport layer. Every
+ * request is serialized by smbj exactly as it would be for the wire, answered by the fake server and parsed back by
+ * smbj, so the whole client stack runs without a network.
+ * <p>
+ * The server speaks SMB 2.1 with multi-credit support, accepts any NTLM credentials, and keeps the directory tree
+ * and file sizes of every share in memory. File content is discarded unless the server is asked to keep it, in
+ * which case files can also be read back. Responses are delivered in order on a separate thread after a
+ * configurable delay, to model the round-trip time of a real link.
+ * <p>
+ * The server is shared by the benchmarks and the unit tests. For the tests it can drop a connection in the middle
+ * of an upload and expire the sessions it has handed out.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class FakeSmbServer implements TransportLayerFactory<SMBPacket<?>> {
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+    private static final int HEADER_SIZE = 64;
+    private static final int MAX_IO_SIZE = 8 * 1024 * 1024;
+    private static final int DIALECT_SMB_2_1 = 0x0210;
+    private static final int DIALECT_SMB_2_0_2 = 0x0202;
+    private static final int CAP_LARGE_MTU = 0x04;
+    private static final long FILE_ATTRIBUTE_DIRECTORY = 0x10;
+    private static final long FILE_ATTRIBUTE_NORMAL = 0x80;
+    private static final int FILE_BASIC_INFORMATION = 4;
+    private static final int FILE_ALL_INFORMATION = 18;
+    private static final int FILE_END_OF_FILE_INFORMATION = 20;
+    private static final String NTLMSSP_OID = "1.3.6.1.4.1.311.2.2.10";
+
+    private final long latencyMicros;
+    private final boolean keepContent;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Set<Long> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger sessionSetups = new AtomicInteger();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final AtomicInteger maxOpenFiles = new AtomicInteger();
+    private final AtomicInteger dropAfterWrites = new AtomicInteger(-1);
+
+    /**
+     * @param latencyMicros the delay before each response is delivered, in microseconds
+     */
+    FakeSmbServer(final long latencyMicros) {
+        this(latencyMicros, false);
+    }
+
+    /**
+     * @param keepContent true to keep the content of the files written, so that they can be read back
+     */
+    FakeSmbServer(final long latencyMicros, final boolean keepContent) {
+        this.latencyMicros = latencyMicros;
+        this.keepContent = keepContent;
+    }
+
+    public TransportLayer<SMBPacket<?>> createTransportLayer(
+            final PacketHandlers<SMBPacket<?>> handlers,
+            final SmbConfig config
+    )
+    {
+        return new FakeTransport(handlers);
+    }
+
+    /**
+     * @return the smbj configuration that connects through this server
+     */
+    SmbConfig config() {
+        return configBuilder().build();
+    }
+
+    /**
+     * @return a builder of smbj configurations that connect through this server
+     */
+    SmbConfig.Builder configBuilder() {
+        // Bouncy Castle for NTLM, the JCE MD4 digest smbj falls back on is not accessible on Java 9 and newer
+        return SmbConfig.builder()
+                .withTransportLayerFactory(this)
+                .withSecurityProvider(new BCSecurityProvider());
+    }
+
+    /**
+     * @return the size of the file on the share, or -1 if there is no such file
+     */
+    long fileSize(final String hostname, final String shareName, final String path) {
+        final Entry entry = entries.get(key(hostname, shareName, path));
+        return null != entry && !entry.directory ? entry.length : -1;
+    }
+
+    /**
+     * @return the content of the file on the share, or null if there is no such file or content is not kept
+     */
+    byte[] content(final String hostname, final String shareName, final String path) {
+        final Entry entry = entries.get(key(hostname, shareName, path));
+        if (null == entry || entry.directory || !keepContent) {
+            return null;
+        }
+        synchronized (entry) {
+            return Arrays.copyOf(entry.data, (int) entry.length);
+        }
+    }
+
+    /**
+     * @return true if there is a directory at the path on the share
+     */
+    boolean isDirectory(final String hostname, final String shareName, final String path) {
+        final Entry entry = entries.get(key(hostname, shareName, path));
+        return null != entry && entry.directory;
+    }
+
+    /**
+     * @return the number of connections opened to the server
+     */
+    int getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * @return the number of sessions authenticated by the server
+     */
+    int getSessionSetups() {
+        return sessionSetups.get();
+    }
+
+    /**
+     * @return the number of write requests the server has answered
+     */
+    int getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return the largest number of files, not counting directories, that were open at once
+     */
+    int getMaxOpenFiles() {
+        return maxOpenFiles.get();
+    }
+
+    /**
+     * Drop the connection that sends the next write request after the given number of writes, as if the network
+     * failed: the write and every request in flight fail with a transport error.
+     */
+    void dropConnectionAfterWrites(final int count) {
+        dropAfterWrites.set(count);
+    }
+
+    /**
+     * Forget every session handed out so far, as a server does when it closes them. Further requests on them fail
+     * with STATUS_USER_SESSION_DELETED.
+     */
+    void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * Remove all files and directories from every share.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    private static String key(final String hostname, final String shareName, final String path) {
+        return (hostname + "\\" + shareName + "\\" + path).toLowerCase();
+    }
+
+    private static String parent(final String path) {
+        final int end = path.lastIndexOf('\\');
+        return end < 0 ? "" : path.substring(0, end);
+    }
+
+    private static class Entry {
+        private final boolean directory;
+        private volatile long length;
+        private volatile long modified = fileTime();
+        private byte[] data = new byte[0];
+
+        Entry(final boolean directory) {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * One client connection to the server.
+     */
+    private class FakeTransport implements TransportLayer<SMBPacket<?>> {
+        private final PacketHandlers<SMBPacket<?>> handlers;
+        private final Map<Long, String> trees = new HashMap<Long, String>();
+        private final Map<Long, Entry> files = new HashMap<Long, Entry>();
+        private volatile boolean connected;
+        private String hostname;
+        private ScheduledExecutorService responder;
+
+        FakeTransport(final PacketHandlers<SMBPacket<?>> handlers) {
+            this.handlers = handlers;
+        }
+
+        public void connect(final InetSocketAddress remoteAddress) throws IOException {
+            hostname = remoteAddress.getHostString();
+            connects.incrementAndGet();
+            responder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "fake-smb-server-" + hostname);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            connected = true;
+        }
+
+        public void disconnect() throws IOException {
+            connected = false;
+            if (null != responder) {
+                responder.shutdownNow();
+            }
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public void write(final SMBPacket<?> packet) throws TransportException {
+            if (!connected) {
+                throw new TransportException("Cannot write " + packet + " as transport is disconnected");
+            }
+            final Buffer<?> serialized = handlers.getSerializer().write(packet);
+            final byte[] response = respond(ByteBuffer.wrap(serialized.getCompactData()).order(ByteOrder.LITTLE_ENDIAN));
+            final Runnable delivery;
+            if (null == response) {
+                // Dropped: fail everything in flight, as smbj does when the socket is reset
+                connected = false;
+                delivery = new Runnable() {
+                    public void run() {
+                        handlers.getReceiver().handleError(new TransportException("Connection reset"));
+                    }
+                };
+            } else {
+                delivery = new Runnable() {
+                    public void run() {
+                        try {
+                            handlers.getReceiver().handle(handlers.getPacketFactory().read(response));
+                        } catch (Exception e) {
+                            handlers.getReceiver().handleError(e);
+                        }
+                    }
+                };
+            }
+            if (latencyMicros > 0) {
+                responder.schedule(delivery, latencyMicros, TimeUnit.MICROSECONDS);
+            } else {
+                responder.execute(delivery);
+            }
+        }
+
+        /**
+         * @return the response, or null if the connection is dropped instead
+         */
+        private synchronized byte[] respond(final ByteBuffer request) {
+            final Response response = new Response(request);
+            final SMB2MessageCommandCode command = SMB2MessageCommandCode.lookup(request.getShort(12) & 0xffff);
+            if (command != SMB2MessageCommandCode.SMB2_NEGOTIATE && command != SMB2MessageCommandCode.SMB2_SESSION_SETUP
+                    && command != SMB2MessageCommandCode.SMB2_ECHO && !sessions.contains(response.sessionId)) {
+                response.error(NtStatus.STATUS_USER_SESSION_DELETED);
+                return response.toBytes();
+            }
+            switch (command) {
+                case SMB2_NEGOTIATE:
+                    negotiate(request, response);
+                    break;
+                case SMB2_SESSION_SETUP:
+                    sessionSetup(response);
+                    break;
+                case SMB2_TREE_CONNECT:
+                    treeConnect(request, response);
+                    break;
+                case SMB2_CREATE:
+                    create(request, response);
+                    break;
+                case SMB2_WRITE:
+                    if (dropAfterWrites.getAndDecrement() == 0) {
+                        return null;
+                    }
+                    write(request, response);
+                    break;
+                case SMB2_READ:
+                    read(request, response);
+                    break;
+                case SMB2_QUERY_INFO:
+                    queryInfo(request, response);
+                    break;
+                case SMB2_CLOSE:
+                    close(request, response);
+                    break;
+                case SMB2_SET_INFO:
+                    setInfo(request, response);
+                    break;
+                case SMB2_LOGOFF:
+                case SMB2_TREE_DISCONNECT:
+                case SMB2_FLUSH:
+                case SMB2_ECHO:
+                    response.body(4).putShort((short) 4);
+                    break;
+                default:
+                    response.error(NtStatus.STATUS_NOT_SUPPORTED);
+            }
+            return response.toBytes();
+        }
+
+        private void negotiate(final ByteBuffer request, final Response response) {
+            final int count = request.getShort(HEADER_SIZE + 2) & 0xffff;
+            int dialect = 0;
+            for (int i = 0; i < count; i++) {
+                final int offered = request.getShort(HEADER_SIZE + 36 + 2 * i) & 0xffff;
+                if (offered == DIALECT_SMB_2_1 || offered == DIALECT_SMB_2_0_2 && dialect == 0) {
+                    dialect = offered;
+                }
+            }
+            if (dialect == 0) {
+                response.error(NtStatus.STATUS_NOT_SUPPORTED);
+                return;
+            }
+            final long now = fileTime();
+            final ByteBuffer body = response.body(64);
+            body.putShort((short) 65);
+            // Signing enabled, not required
+            body.putShort((short) 1);
+            body.putShort((short) dialect);
+            body.putShort((short) 0);
+            body.putLong(0x534d42L).putLong(0x46414b45L);
+            body.putInt(CAP_LARGE_MTU);
+            body.putInt(MAX_IO_SIZE).putInt(MAX_IO_SIZE).putInt(MAX_IO_SIZE);
+            body.putLong(now).putLong(now);
+            body.putShort((short) (HEADER_SIZE + 64)).putShort((short) 0);
+            body.putInt(0);
+        }
+
+        private void sessionSetup(final Response response) {
+            if (response.sessionId == 0) {
+                // First leg: answer the NTLM negotiate message with a challenge
+                response.sessionId = ids.incrementAndGet();
+                response.status = NtStatus.STATUS_MORE_PROCESSING_REQUIRED;
+                final byte[] token = challengeToken();
+                final ByteBuffer body = response.body(8 + token.length);
+                body.putShort((short) 9).putShort((short) 0);
+                body.putShort((short) (HEADER_SIZE + 8)).putShort((short) token.length);
+                body.put(token);
+            } else {
+                // Second leg: accept any NTLM authenticate message
+                sessions.add(response.sessionId);
+                sessionSetups.incrementAndGet();
+                final ByteBuffer body = response.body(8);
+                body.putShort((short) 9).putShort((short) 0);
+                body.putShort((short) 0).putShort((short) 0);
+            }
+        }
+
+        private void treeConnect(final ByteBuffer request, final Response response) {
+            final String unc = string(request, request.getShort(HEADER_SIZE + 4) & 0xffff,
+                    request.getShort(HEADER_SIZE + 6) & 0xffff);
+            final long treeId = ids.incrementAndGet();
+            trees.put(treeId, unc.substring(unc.lastIndexOf('\\') + 1));
+            response.treeId = treeId;
+            final ByteBuffer body = response.body(16);
+            body.putShort((short) 16);
+            // Disk share
+            body.put((byte) 1).put((byte) 0);
+            body.putInt(0).putInt(0);
+            body.putInt(0x001f01ff);
+        }
+
+        private void create(final ByteBuffer request, final Response response) {
+            final String shareName = trees.get(response.treeId);
+            final long disposition = request.getInt(HEADER_SIZE + 36) & 0xffffffffL;
+            final long options = request.getInt(HEADER_SIZE + 40) & 0xffffffffL;
+            final String path = string(request, request.getShort(HEADER_SIZE + 44) & 0xffff,
+                    request.getShort(HEADER_SIZE + 46) & 0xffff);
+            final boolean wantDirectory = (options & SMB2CreateOptions.FILE_DIRECTORY_FILE.getValue()) != 0;
+            final String key = key(hostname, shareName, path);
+
+            Entry entry = path.isEmpty() ? new Entry(true) : entries.get(key);
+            final boolean parentExists = path.isEmpty() || parent(path).isEmpty()
+                    || isDirectory(key(hostname, shareName, parent(path)));
+            if (null == entry) {
+                if (!parentExists) {
+                    response.error(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND);
+                    return;
+                }
+                if (disposition == SMB2CreateDisposition.FILE_OPEN.getValue()
+                        || disposition == SMB2CreateDisposition.FILE_OVERWRITE.getValue()) {
+                    response.error(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND);
+                    return;
+                }
+                entry = new Entry(wantDirectory);
+                final Entry existing = entries.putIfAbsent(key, entry);
+                if (null != existing) {
+                    entry = existing;
+                }
+            } else if (disposition == SMB2CreateDisposition.FILE_CREATE.getValue()) {
+                response.error(NtStatus.STATUS_OBJECT_NAME_COLLISION);
+                return;
+            } else if (wantDirectory && !entry.directory) {
+                response.error(NtStatus.STATUS_NOT_A_DIRECTORY);
+                return;
+            } else if (!entry.directory && (disposition == SMB2CreateDisposition.FILE_OVERWRITE.getValue()
+                    || disposition == SMB2CreateDisposition.FILE_OVERWRITE_IF.getValue()
+                    || disposition == SMB2CreateDisposition.FILE_SUPERSEDE.getValue())) {
+                entry.length = 0;
+                entry.modified = fileTime();
+            }
+
+            final long fileId = ids.incrementAndGet();
+            files.put(fileId, entry);
+            if (!entry.directory) {
+                maxOpenFiles.accumulateAndGet(openFiles.incrementAndGet(), Math::max);
+            }
+            final long now = fileTime();
+            final ByteBuffer body = response.body(88);
+            body.putShort((short) 89);
+            body.put((byte) 0).put((byte) 0);
+            body.putInt(2);
+            body.putLong(now).putLong(now).putLong(now).putLong(now);
+            body.putLong(entry.length).putLong(entry.length);
+            body.putInt((int) (entry.directory ? FILE_ATTRIBUTE_DIRECTORY : FILE_ATTRIBUTE_NORMAL));
+            body.putInt(0);
+            body.putLong(fileId).putLong(fileId);
+            body.putInt(0).putInt(0);
+        }
+
+        private void write(final ByteBuffer request, final Response response) {
+            final int length = request.getInt(HEADER_SIZE + 4);
+            final long offset = request.getLong(HEADER_SIZE + 8);
+            final Entry file = files.get(request.getLong(HEADER_SIZE + 16));
+            if (null == file || file.directory) {
+                response.error(NtStatus.STATUS_FILE_CLOSED);
+                return;
+            }
+            synchronized (file) {
+                if (keepContent) {
+                    if (file.data.length < offset + length) {
+                        file.data = Arrays.copyOf(file.data, (int) Math.max(offset + length, 2L * file.data.length));
+                    }
+                    final int dataOffset = request.getShort(HEADER_SIZE + 2) & 0xffff;
+                    System.arraycopy(request.array(), dataOffset, file.data, (int) offset, length);
+                }
+                file.length = Math.max(file.length, offset + length);
+                file.modified = fileTime();
+            }
+            writes.incrementAndGet();
+            final ByteBuffer body = response.body(16);
+            body.putShort((short) 17).putShort((short) 0);
+            body.putInt(length).putInt(0);
+            body.putShort((short) 0).putShort((short) 0);
+        }
+
+        private void read(final ByteBuffer request, final Response response) {
+            final int length = request.getInt(HEADER_SIZE + 4);
+            final long offset = request.getLong(HEADER_SIZE + 8);
+            final Entry file = files.get(request.getLong(HEADER_SIZE + 16));
+            if (null == file || file.directory || !keepContent) {
+                response.error(null == file ? NtStatus.STATUS_FILE_CLOSED : NtStatus.STATUS_NOT_SUPPORTED);
+                return;
+            }
+            synchronized (file) {
+                final int count = (int) Math.max(0, Math.min(length, file.length - offset));
+                if (count == 0) {
+                    response.error(NtStatus.STATUS_END_OF_FILE);
+                    return;
+                }
+                final ByteBuffer body = response.body(16 + count);
+                body.putShort((short) 17).put((byte) (HEADER_SIZE + 16)).put((byte) 0);
+                body.putInt(count).putInt(0).putInt(0);
+                body.put(file.data, (int) offset, count);
+            }
+        }
+
+        private void queryInfo(final ByteBuffer request, final Response response) {
+            final int infoClass = request.get(HEADER_SIZE + 3);
+            final Entry file = files.get(request.getLong(HEADER_SIZE + 24));
+            if (null == file) {
+                response.error(NtStatus.STATUS_FILE_CLOSED);
+                return;
+            }
+            if (infoClass != FILE_ALL_INFORMATION) {
+                response.error(NtStatus.STATUS_NOT_SUPPORTED);
+                return;
+            }
+            final ByteBuffer body = response.body(8 + 100);
+            body.putShort((short) 9).putShort((short) (HEADER_SIZE + 8)).putInt(100);
+            // Basic information: creation, last access, last write and change time, attributes
+            body.putLong(file.modified).putLong(file.modified).putLong(file.modified).putLong(file.modified);
+            body.putInt((int) (file.directory ? FILE_ATTRIBUTE_DIRECTORY : FILE_ATTRIBUTE_NORMAL)).putInt(0);
+            // Standard information: allocation size, end of file, links, delete pending, directory
+            body.putLong(file.length).putLong(file.length).putInt(1);
+            body.put((byte) 0).put((byte) (file.directory ? 1 : 0)).putShort((short) 0);
+            // Internal, extended attribute, access, position, mode, alignment and an empty name
+            body.putLong(0).putInt(0).putInt(0).putLong(0).putInt(0).putInt(0).putInt(0);
+        }
+
+        private void setInfo(final ByteBuffer request, final Response response) {
+            final int infoClass = request.get(HEADER_SIZE + 3);
+            final int bufferOffset = request.getShort(HEADER_SIZE + 8) & 0xffff;
+            final Entry file = files.get(request.getLong(HEADER_SIZE + 16));
+            if (null != file && infoClass == FILE_END_OF_FILE_INFORMATION) {
+                synchronized (file) {
+                    file.length = request.getLong(bufferOffset);
+                }
+            }
+            if (null != file && infoClass == FILE_BASIC_INFORMATION) {
+                // Creation, last access, last write and change time: 0 and -1 leave the time as it is
+                final long lastWrite = request.getLong(bufferOffset + 16);
+                if (lastWrite != 0 && lastWrite != -1) {
+                    file.modified = lastWrite;
+                }
+            }
+            response.body(2).putShort((short) 2);
+        }
+
+        private void close(final ByteBuffer request, final Response response) {
+            final Entry file = files.remove(request.getLong(HEADER_SIZE + 8));
+            if (null != file && !file.directory) {
+                openFiles.decrementAndGet();
+            }
+            final long length = null != file ? file.length : 0;
+            final ByteBuffer body = response.body(60);
+            body.putShort((short) 60).putShort((short) 0).putInt(0);
+            body.putLong(0).putLong(0).putLong(0).putLong(0);
+            body.putLong(length).putLong(length);
+            body.putInt(0);
+        }
+
+        private boolean isDirectory(final String key) {
+            final Entry entry = entries.get(key);
+            return null != entry && entry.directory;
+        }
+    }
+
+    /**
+     * @return an SPNEGO token carrying an NTLM challenge message
+     */
+    private static byte[] challengeToken() {
+        final byte[] targetName = "FAKE".getBytes(UTF_16LE);
+        final ByteBuffer targetInfo = ByteBuffer.allocate(4 + targetName.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+        // MsvAvNbComputerName, then MsvAvEOL
+        targetInfo.putShort((short) 1).putShort((short) targetName.length).put(targetName);
+        targetInfo.putShort((short) 0).putShort((short) 0);
+
+        final int payloadOffset = 56;
+        final ByteBuffer challenge = ByteBuffer.allocate(payloadOffset + targetName.length + targetInfo.capacity())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        challenge.put("NTLMSSP".getBytes(Charset.forName("US-ASCII"))).put((byte) 0);
+        challenge.putInt(2);
+        challenge.putShort((short) targetName.length).putShort((short) targetName.length).putInt(payloadOffset);
+        // Unicode, request target, NTLM, always sign, target type server, extended session security, target info
+        challenge.putInt(0x00000001 | 0x00000004 | 0x00000200 | 0x00008000 | 0x00020000 | 0x00080000 | 0x00800000);
+        challenge.putLong(0x0123456789abcdefL);
+        challenge.putLong(0);
+        challenge.putShort((short) targetInfo.capacity()).putShort((short) targetInfo.capacity())
+                .putInt(payloadOffset + targetName.length);
+        challenge.putLong(0);
+        challenge.put(targetName);
+        challenge.put(targetInfo.array());
+
+        final NegTokenTarg token = new NegTokenTarg();
+        token.setNegotiationResult(BigInteger.ONE);
+        token.setSupportedMech(new ASN1ObjectIdentifier(NTLMSSP_OID));
+        token.setResponseToken(challenge.array());
+        final Buffer.PlainBuffer buffer = new Buffer.PlainBuffer(Endian.LE);
+        try {
+            token.write(buffer);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer.getCompactData();
+    }
+
+    private static String string(final ByteBuffer buffer, final int offset, final int length) {
+        return new String(buffer.array(), offset, length, UTF_16LE);
+    }
+
+    private static long fileTime() {
+        // 100ns intervals since 1601-01-01
+        return (System.currentTimeMillis() + 11644473600000L) * 10000L;
+    }
+
+    /**
+     * A response to a single request, echoing its message id, tree id and session id.
+     */
+    private static class Response {
+        private final int command;
+        private final int creditRequest;
+        private final long messageId;
+        private long treeId;
+        private long sessionId;
+        private NtStatus status = NtStatus.STATUS_SUCCESS;
+        private ByteBuffer body;
+
+        Response(final ByteBuffer request) {
+            this.command = request.getShort(12) & 0xffff;
+            this.creditRequest = request.getShort(14) & 0xffff;
+            this.messageId = request.getLong(24);
+            this.treeId = request.getInt(36) & 0xffffffffL;
+            this.sessionId = request.getLong(40);
+        }
+
+        ByteBuffer body(final int size) {
+            body = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            return body;
+        }
+
+        void error(final NtStatus error) {
+            status = error;
+            body(9).putShort((short) 9).put((byte) 0).put((byte) 0).putInt(0).put((byte) 0);
+        }
+
+        byte[] toBytes() {
+            final ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + body.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            packet.put((byte) 0xfe).put((byte) 'S').put((byte) 'M').put((byte) 'B');
+            packet.putShort((short) HEADER_SIZE);
+            packet.putShort((short) 0);
+            packet.putInt((int) status.getValue());
+            packet.putShort((short) command);
+            // Grant what was asked for, so the client keeps its full credit window
+            packet.putShort((short) Math.max(1, creditRequest));
+            // Server to redirector
+            packet.putInt(1);
+            packet.putInt(0);
+            packet.putLong(messageId);
+            packet.putInt(0);
+            packet.putInt((int) treeId);
+            packet.putLong(sessionId);
+            packet.put(new byte[16]);
+            packet.put(body.array());
+            return packet.array();
+        }
+    }
+}
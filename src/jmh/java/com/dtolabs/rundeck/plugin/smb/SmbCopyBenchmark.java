@@ -0,0 +1,263 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.share.DiskShare;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks of the SMB copy path against an in-process {@link FakeSmbServer}.
+ * <p>
+ * Each copy runs the same steps as SmbFileCopier for a single attempt: lease a session from the connection pool,
+ * connect the share, create the remote directories and upload the payload. Times are sampled so that the report
+ * includes latency percentiles; run with -prof gc to add allocation rates. The latencyMicros parameter sets the
+ * simulated round-trip time of the fake server.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmbCopyBenchmark {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String REMOTE_DIRECTORY = "C:\\Windows\\Temp\\rundeck\\dispatch";
+    private static final int SCRIPT_SIZE = 4 * 1024;
+    private static final int LARGE_FILE_SIZE = 64 * 1024 * 1024;
+    private static final int FANOUT_NODES = 32;
+    private static final int FANOUT_THREADS = 16;
+    private static final int POOL_MAX_PER_HOST = 8;
+    private static final long POOL_IDLE_TIMEOUT = 60000;
+    private static final long DIRECTORY_CACHE_TTL = 300000;
+    private static final int UPLOAD_BUFFER_SIZE = 1024 * 1024;
+    private static final int WRITE_OUTSTANDING = 8;
+    private static final SmbClientSettings CLIENT_SETTINGS = SmbClientSettings.defaults();
+    private static final SmbPathResolver RESOLVER =
+            new SmbPathResolver(Collections.<SmbPathResolver.Mapping>emptyList(), 1024);
+
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    private FakeSmbServer server;
+    private SmbConnectionPool pool;
+    private SmbDirectoryCache directories;
+    private ExecutorService fanout;
+    private byte[] script;
+    private File largeFile;
+    private final char[] password = "rundeck".toCharArray();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FakeSmbServer(latencyMicros);
+        pool = new SmbConnectionPool() {
+            SMBClient newClient(final SmbClientSettings clientSettings) {
+                return new SMBClient(clientSettings.toConfig(server.configBuilder()));
+            }
+        };
+        directories = new SmbDirectoryCache(10000);
+        fanout = Executors.newFixedThreadPool(FANOUT_THREADS);
+
+        final Random random = new Random(42);
+        script = new byte[SCRIPT_SIZE];
+        random.nextBytes(script);
+
+        largeFile = File.createTempFile("smb-benchmark", ".bin");
+        final byte[] block = new byte[1024 * 1024];
+        final OutputStream out = new FileOutputStream(largeFile);
+        try {
+            for (int written = 0; written < LARGE_FILE_SIZE; written += block.length) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fanout.shutdownNow();
+        pool.evictIdle();
+        if (!largeFile.delete()) {
+            largeFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Bytes uploaded, reported as a rate next to the operation rate of the throughput benchmarks.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public SmbRemotePath parseRemotePath() {
+        return RESOLVER.parse(REMOTE_DIRECTORY + "\\dispatch-script.bat");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public SmbRemotePath resolveRemotePath() {
+        return RESOLVER.resolve(REMOTE_DIRECTORY + "\\dispatch-script.bat");
+    }
+
+    /**
+     * Create the remote directory tree with the directory cache disabled, checking every path component.
+     */
+    @Benchmark
+    public void mkdirsUncached() throws Exception {
+        final SmbConnectionPool.PooledSession pooled = acquire(HOSTNAME, POOL_IDLE_TIMEOUT);
+        try {
+            final SmbRemotePath path = RESOLVER.resolve(REMOTE_DIRECTORY + "\\file");
+            final DiskShare share = pooled.connectShare(path.getShareName());
+            directories.mkdirs(share, HOSTNAME, path.getShareName(), path.getDirectory(), 0);
+        } finally {
+            pool.release(pooled, POOL_IDLE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Create the remote directory tree with the directory cache enabled, as on repeated copies.
+     */
+    @Benchmark
+    public void mkdirsCached() throws Exception {
+        final SmbConnectionPool.PooledSession pooled = acquire(HOSTNAME, POOL_IDLE_TIMEOUT);
+        try {
+            final SmbRemotePath path = RESOLVER.resolve(REMOTE_DIRECTORY + "\\file");
+            final DiskShare share = pooled.connectShare(path.getShareName());
+            directories.mkdirs(share, HOSTNAME, path.getShareName(), path.getDirectory(), DIRECTORY_CACHE_TTL);
+        } finally {
+            pool.release(pooled, POOL_IDLE_TIMEOUT);
+        }
+    }
+
+    @Benchmark
+    public long copySmallScript() throws Exception {
+        return copy(HOSTNAME, SmbPayload.forBytes(script, "script content"), POOL_IDLE_TIMEOUT, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long copyLargeFile(final Transferred transferred) throws Exception {
+        return copy(HOSTNAME, SmbPayload.forFile(largeFile, false), POOL_IDLE_TIMEOUT, transferred);
+    }
+
+    /**
+     * Copy a small script with pooling disabled, so every copy pays for connect, negotiate and authenticate.
+     */
+    @Benchmark
+    public long copySmallScriptUnpooled() throws Exception {
+        return copy(HOSTNAME, SmbPayload.forBytes(script, "script content"), 0, null);
+    }
+
+    /**
+     * Lease a pooled session and return it, the overhead of a copy to a node with a warm session.
+     */
+    @Benchmark
+    public void sessionReuse() throws Exception {
+        pool.release(acquire(HOSTNAME, POOL_IDLE_TIMEOUT), POOL_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Connect, negotiate and authenticate a new session, and close it again.
+     */
+    @Benchmark
+    public void sessionSetup() throws Exception {
+        pool.release(acquire(HOSTNAME, 0), 0);
+    }
+
+    /**
+     * Copy a small script to many nodes at once, the way a job step with a large node set dispatches scripts.
+     */
+    @Benchmark
+    public long fanOutSmallScript() throws Exception {
+        final List<Future<Long>> copies = new ArrayList<Future<Long>>(FANOUT_NODES);
+        for (int i = 1; i <= FANOUT_NODES; i++) {
+            final String hostname = "127.0.1." + i;
+            copies.add(fanout.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return copy(hostname, SmbPayload.forBytes(script, "script content"), POOL_IDLE_TIMEOUT, null);
+                }
+            }));
+        }
+        long total = 0;
+        for (Future<Long> copy : copies) {
+            total += copy.get();
+        }
+        return total;
+    }
+
+    private SmbConnectionPool.PooledSession acquire(final String hostname, final long idleTimeout)
+            throws IOException, InterruptedException
+    {
+        return pool.acquire(hostname, "WORKGROUP", "rundeck", password, CLIENT_SETTINGS, POOL_MAX_PER_HOST,
+                idleTimeout, new SmbCopyMetrics(hostname));
+    }
+
+    private long copy(
+            final String hostname,
+            final SmbPayload payload,
+            final long idleTimeout,
+            final Transferred transferred
+    ) throws IOException, InterruptedException
+    {
+        final SmbCopyMetrics metrics = new SmbCopyMetrics(hostname);
+        final SmbRemotePath path = RESOLVER.resolve(REMOTE_DIRECTORY + "\\dispatch-script.bat");
+        SmbConnectionPool.PooledSession pooled = pool.acquire(hostname, "WORKGROUP", "rundeck", password,
+                CLIENT_SETTINGS, POOL_MAX_PER_HOST, idleTimeout, metrics);
+        try {
+            final DiskShare share = pooled.connectShare(path.getShareName());
+            directories.mkdirs(share, hostname, path.getShareName(), path.getDirectory(), DIRECTORY_CACHE_TTL);
+            final long written = new SmbUploader(UPLOAD_BUFFER_SIZE, WRITE_OUTSTANDING)
+                    .upload(share, path.getPath(), payload, null);
+            metrics.addBytes(written);
+            pool.release(pooled, idleTimeout);
+            pooled = null;
+            metrics.finish(false);
+            if (null != transferred) {
+                transferred.bytes += written;
+            }
+            return written;
+        } finally {
+            if (null != pooled) {
+                pool.invalidate(pooled);
+            }
+            payload.release();
+        }
+    }
+}
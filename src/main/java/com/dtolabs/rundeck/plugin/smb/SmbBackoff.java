@@ -0,0 +1,36 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * SmbBackoff computes the delay before a retry: the base delay grows by the multiplier on each retry, up to the
+ * maximum, which also caps the first delay. The delay is then drawn at random from its upper half, so that copies to many nodes that failed together
+ * don't all retry at the same moment.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbBackoff {
+    private SmbBackoff() {
+    }
+
+    /**
+     * @param retry      the number of retries made so far, 0 for the first
+     * @param base       the delay before the first retry, in milliseconds
+     * @param multiplier the factor the delay grows by on each retry, 1 for a fixed delay
+     * @param max        the maximum delay, in milliseconds, also when below the base delay
+     *
+     * @return the delay before the retry, in milliseconds
+     */
+    static long delay(final int retry, final long base, final int multiplier, final long max) {
+        double delay = Math.max(0, base);
+        for (int i = 0; i < retry && delay < max; i++) {
+            delay *= Math.max(1, multiplier);
+        }
+        final long capped = (long) Math.min(delay, Math.max(0, max));
+        if (capped <= 1) {
+            return capped;
+        }
+        return capped / 2 + ThreadLocalRandom.current().nextLong(capped - capped / 2 + 1);
+    }
+}
@@ -0,0 +1,149 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * SmbCircuitBreaker stops copies to a host that keeps failing with transport errors, so that a site outage fails
+ * the copies to its nodes right away instead of tying up a thread per node for the full retry schedule.
+ * <p>
+ * The breaker for a host opens after a number of consecutive failed attempts. While it is open, copies to the host
+ * fail fast. Once the cool-down has passed a single attempt is let through as a probe: if it succeeds the breaker
+ * closes, if it fails the breaker stays open for another cool-down.
+ * <p>
+ * Only transport failures count, which smbj rarely throws as such: they usually arrive wrapped, so exceptions are
+ * classified by their cause chain, see {@link #isTransportFailure(Throwable)}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbCircuitBreaker {
+    private static final SmbCircuitBreaker INSTANCE = new SmbCircuitBreaker();
+
+    static SmbCircuitBreaker getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, State> hosts = new HashMap<String, State>();
+
+    SmbCircuitBreaker() {
+    }
+
+    /**
+     * @param cooldown how long the breaker stays open before the next probe, in milliseconds
+     *
+     * @return true if an attempt may be made against the host
+     */
+    synchronized boolean allow(final String hostname, final long cooldown) {
+        final State state = hosts.get(hostname.toLowerCase());
+        if (null == state || !state.open) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < state.openUntil) {
+            return false;
+        }
+        // Let this attempt through as the probe, and hold back the others for another cool-down
+        state.openUntil = now + cooldown;
+        return true;
+    }
+
+    /**
+     * Record an attempt that reached the host, closing its breaker.
+     */
+    synchronized void succeeded(final String hostname) {
+        hosts.remove(hostname.toLowerCase());
+    }
+
+    /**
+     * Record an attempt that failed with a transport error.
+     *
+     * @param threshold the number of consecutive failures that opens the breaker, 0 to never open it
+     * @param cooldown  how long the breaker stays open, in milliseconds
+     *
+     * @return true if the breaker is open now
+     */
+    synchronized boolean failed(final String hostname, final int threshold, final long cooldown) {
+        State state = hosts.get(hostname.toLowerCase());
+        if (null == state) {
+            state = new State();
+            hosts.put(hostname.toLowerCase(), state);
+        }
+        state.failures++;
+        if (threshold > 0 && state.failures >= threshold) {
+            state.open = true;
+            state.openUntil = System.currentTimeMillis() + cooldown;
+        }
+        return state.open;
+    }
+
+    /**
+     * @return the milliseconds until the next probe of the host, or 0 if its breaker is closed
+     */
+    synchronized long getRetryAfter(final String hostname) {
+        final State state = hosts.get(hostname.toLowerCase());
+        if (null == state || !state.open) {
+            return 0;
+        }
+        return Math.max(0, state.openUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the exception is, or wraps, a failure to reach the host or a connection to it that broke.
+     * smbj reports most of them as an SMBRuntimeException around a TransportException; an SMBApiException means
+     * the server answered, and an interrupted wait says nothing about the host.
+     */
+    static boolean isTransportFailure(final Throwable e) {
+        if (isInterruption(e)) {
+            return false;
+        }
+        for (Throwable cause : causes(e)) {
+            if (cause instanceof SMBApiException) {
+                return false;
+            }
+            if (cause instanceof TransportException || cause instanceof SocketTimeoutException
+                    || cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the exception is, or wraps, the interruption of the thread, which smbj wraps in a
+     * TransportException when the thread is interrupted while waiting for a response
+     */
+    static boolean isInterruption(final Throwable e) {
+        for (Throwable cause : causes(e)) {
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the exception and its causes, outermost first, stopping at a cycle
+     */
+    private static List<Throwable> causes(final Throwable e) {
+        final List<Throwable> causes = new ArrayList<Throwable>();
+        for (Throwable cause = e; null != cause && !causes.contains(cause); cause = cause.getCause()) {
+            causes.add(cause);
+        }
+        return causes;
+    }
+
+    private static class State {
+        private int failures;
+        private boolean open;
+        private long openUntil;
+    }
+}
@@ -0,0 +1,127 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.smbj.SmbConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SmbClientSettings holds the smbj client configuration for a node: buffer sizes, timeouts, the dialects offered
+ * and whether signing is required. Nodes with the same settings share one SMBClient, see {@link
+ * SmbConnectionPool}.
+ * <p>
+ * The settings don't depend on the Rundeck classes, so that they can be used without them, as by the benchmarks.
+ * They are resolved from the node by {@link SmbNodeSettings}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbClientSettings {
+    private static final String[] DIALECT_NAMES = {"2.0.2", "2.1", "3.0", "3.0.2", "3.1.1"};
+    private static final SMB2Dialect[] DIALECTS = {
+            SMB2Dialect.SMB_2_0_2, SMB2Dialect.SMB_2_1, SMB2Dialect.SMB_3_0, SMB2Dialect.SMB_3_0_2,
+            SMB2Dialect.SMB_3_1_1
+    };
+
+    private final int readBufferSize;
+    private final int writeBufferSize;
+    private final int transactBufferSize;
+    private final int timeout;
+    private final int socketTimeout;
+    private final List<SMB2Dialect> dialects;
+    private final boolean signingRequired;
+
+    /**
+     * @param timeout       the read, write and transact timeout, in seconds
+     * @param socketTimeout the socket read timeout, in seconds. 0 waits indefinitely
+     */
+    SmbClientSettings(
+            final int readBufferSize,
+            final int writeBufferSize,
+            final int transactBufferSize,
+            final int timeout,
+            final int socketTimeout,
+            final List<SMB2Dialect> dialects,
+            final boolean signingRequired
+    )
+    {
+        this.readBufferSize = readBufferSize;
+        this.writeBufferSize = writeBufferSize;
+        this.transactBufferSize = transactBufferSize;
+        this.timeout = timeout;
+        this.socketTimeout = socketTimeout;
+        this.dialects = dialects;
+        this.signingRequired = signingRequired;
+    }
+
+    /**
+     * @return the smbj client defaults
+     */
+    static SmbClientSettings defaults() {
+        // The defaults are constants, copied in at compile time, so SmbFileCopier is not loaded
+        return new SmbClientSettings(SmbFileCopier.DEFAULT_SMB_READ_BUFFER_SIZE,
+                SmbFileCopier.DEFAULT_SMB_WRITE_BUFFER_SIZE, SmbFileCopier.DEFAULT_SMB_TRANSACT_BUFFER_SIZE,
+                SmbFileCopier.DEFAULT_SMB_TIMEOUT, SmbFileCopier.DEFAULT_SMB_SOCKET_TIMEOUT,
+                parseDialects(SmbFileCopier.DEFAULT_SMB_DIALECTS), SmbFileCopier.DEFAULT_SMB_SIGNING_REQUIRED);
+    }
+
+    /**
+     * Parse a comma separated list of dialects, such as "2.1,2.0.2".
+     *
+     * @throws IllegalArgumentException if a dialect is not valid or none is given
+     */
+    static List<SMB2Dialect> parseDialects(final String value) {
+        final List<SMB2Dialect> dialects = new ArrayList<SMB2Dialect>();
+        for (String name : value.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            SMB2Dialect dialect = null;
+            for (int i = 0; i < DIALECT_NAMES.length; i++) {
+                if (DIALECT_NAMES[i].equals(name.trim())) {
+                    dialect = DIALECTS[i];
+                }
+            }
+            if (null == dialect) {
+                throw new IllegalArgumentException("Not a valid SMB dialect: " + name.trim()
+                        + ", expected one of 2.0.2, 2.1, 3.0, 3.0.2 or 3.1.1");
+            }
+            if (!dialects.contains(dialect)) {
+                dialects.add(dialect);
+            }
+        }
+        if (dialects.isEmpty()) {
+            throw new IllegalArgumentException("No SMB dialects configured");
+        }
+        return dialects;
+    }
+
+    /**
+     * @return a key that is equal for equal settings
+     */
+    String key() {
+        return readBufferSize + "|" + writeBufferSize + "|" + transactBufferSize + "|" + timeout + "|"
+                + socketTimeout + "|" + dialects + "|" + signingRequired;
+    }
+
+    SmbConfig toConfig() {
+        return toConfig(SmbConfig.builder());
+    }
+
+    /**
+     * Apply the settings to the builder, which may already carry other settings such as the transport.
+     */
+    SmbConfig toConfig(final SmbConfig.Builder builder) {
+        return builder
+                .withReadBufferSize(readBufferSize)
+                .withWriteBufferSize(writeBufferSize)
+                .withTransactBufferSize(transactBufferSize)
+                .withTimeout(timeout, TimeUnit.SECONDS)
+                .withSoTimeout(socketTimeout, TimeUnit.SECONDS)
+                .withDialects(dialects)
+                .withSigningRequired(signingRequired)
+                .build();
+    }
+}
@@ -0,0 +1,468 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2Echo;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * SmbConnectionPool keeps authenticated SMB sessions open between copy calls, so that repeated copies to the same
+ * node skip the TCP connect, dialect negotiation and authentication round-trips.
+ * <p>
+ * Sessions are pooled per hostname, domain, user, password and client settings. The password is part of the key as
+ * a salted fingerprint only, so a session authenticated with an old or different password for the same user is
+ * never handed out. Each distinct set of client settings has one shared SMBClient, and so its own connections.
+ * <p>
+ * An idle session is health checked before it is handed out again: its connection must still be up, and a session
+ * idle for more than a few seconds must answer an echo. Sessions are closed once they have been idle for longer
+ * than the idle timeout, and re-authenticated after a maximum age. The number of sessions leased out concurrently
+ * to a single host is bounded by the max-per-host limit, which follows the configured value as it changes.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbConnectionPool {
+    private static final long SWEEP_INTERVAL_SECONDS = 15;
+    private static final long VALIDATE_AFTER = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_SESSION_AGE = TimeUnit.HOURS.toMillis(1);
+    private static final byte[] FINGERPRINT_SALT = salt();
+
+    private static final SmbConnectionPool INSTANCE = new SmbConnectionPool();
+
+    static SmbConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, SMBClient> clients = new HashMap<String, SMBClient>();
+    private final Map<String, Deque<PooledSession>> idle = new HashMap<String, Deque<PooledSession>>();
+    private final Map<String, HostPermits> hostPermits = new HashMap<String, HostPermits>();
+    private final Map<Connection, Integer> connectionUsers = new IdentityHashMap<Connection, Integer>();
+    private final ScheduledExecutorService sweeper;
+    private final long validateAfter;
+    private final long maxSessionAge;
+
+    SmbConnectionPool() {
+        this(VALIDATE_AFTER, MAX_SESSION_AGE);
+    }
+
+    /**
+     * @param validateAfter the idle time in milliseconds after which a session is checked with an echo before reuse
+     * @param maxSessionAge the time in milliseconds after which a session is authenticated again
+     */
+    SmbConnectionPool(final long validateAfter, final long maxSessionAge) {
+        this.validateAfter = validateAfter;
+        this.maxSessionAge = maxSessionAge;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smb-connection-pool-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    static String key(
+            final String hostname,
+            final String domain,
+            final String username,
+            final char[] password,
+            final SmbClientSettings clientSettings
+    )
+    {
+        return hostname.toLowerCase() + "|" + (null != domain ? domain.toLowerCase() : "") + "|" + username + "|"
+                + fingerprint(password) + "|" + clientSettings.key();
+    }
+
+    /**
+     * @return a salted hash of the password, which tells passwords apart without keeping them in the pool
+     */
+    static String fingerprint(final char[] password) {
+        final ByteBuffer bytes = Charset.forName("UTF-8").encode(CharBuffer.wrap(password));
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(FINGERPRINT_SALT);
+            md.update(bytes.duplicate());
+            return SmbPayload.hex(Arrays.copyOf(md.digest(), 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(bytes.array(), (byte) 0);
+        }
+    }
+
+    private static byte[] salt() {
+        final byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * @return true if the server no longer knows the session, which a new session authenticated on the same
+     * connection can recover from. smbj drops responses with STATUS_NETWORK_SESSION_EXPIRED, so a session that
+     * expires while pooled only shows as a timeout; the maximum session age keeps that from happening.
+     */
+    static boolean isSessionExpired(final SMBApiException e) {
+        return e.getStatus() == NtStatus.STATUS_NETWORK_SESSION_EXPIRED
+                || e.getStatus() == NtStatus.STATUS_USER_SESSION_DELETED;
+    }
+
+    /**
+     * Create the client for a distinct set of client settings.
+     */
+    SMBClient newClient(final SmbClientSettings clientSettings) {
+        return new SMBClient(clientSettings.toConfig());
+    }
+
+    private SMBClient clientFor(final SmbClientSettings clientSettings) {
+        synchronized (clients) {
+            SMBClient client = clients.get(clientSettings.key());
+            if (null == client) {
+                client = newClient(clientSettings);
+                clients.put(clientSettings.key(), client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Lease an authenticated session for the given host and credentials, reusing an idle pooled session when a
+     * healthy one is available. Blocks while the host already has maxPerHost sessions leased out.
+     *
+     * @param clientSettings the settings of the client that connects new sessions
+     * @param metrics the copy metrics to add the resolve, connect and authenticate times to
+     */
+    PooledSession acquire(
+            final String hostname,
+            final String domain,
+            final String username,
+            final char[] password,
+            final SmbClientSettings clientSettings,
+            final int maxPerHost,
+            final long idleTimeout,
+            final SmbCopyMetrics metrics
+    ) throws IOException, InterruptedException
+    {
+        final Semaphore permits = permitsFor(hostname, maxPerHost);
+        permits.acquire();
+        boolean leased = false;
+        try {
+            final String key = key(hostname, domain, username, password, clientSettings);
+            PooledSession pooled;
+            while (null != (pooled = pollIdle(key))) {
+                if (pooled.isHealthy(idleTimeout, maxSessionAge) && pooled.isAlive(validateAfter)) {
+                    pooled.reused = true;
+                    leased = true;
+                    return pooled;
+                }
+                destroy(pooled);
+            }
+
+            // Resolve up front so the name lookup is timed apart from the connect; the JVM caches the address
+            long start = SmbCopyMetrics.start();
+            InetAddress.getByName(hostname);
+            metrics.stop(SmbCopyMetrics.Phase.RESOLVE, start);
+
+            start = SmbCopyMetrics.start();
+            final Connection connection = clientFor(clientSettings).connect(hostname);
+            metrics.stop(SmbCopyMetrics.Phase.CONNECT, start);
+            retainConnection(connection);
+            try {
+                start = SmbCopyMetrics.start();
+                AuthenticationContext ac = new AuthenticationContext(username, password, domain);
+                Session session = connection.authenticate(ac);
+                metrics.stop(SmbCopyMetrics.Phase.AUTHENTICATE, start);
+                pooled = new PooledSession(key, hostname, connection, session, permits);
+            } catch (RuntimeException e) {
+                releaseConnection(connection);
+                throw e;
+            }
+            leased = true;
+            return pooled;
+        } finally {
+            if (!leased) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Return a leased session to the pool after a successful copy. With an idle timeout of zero or less the
+     * session is closed right away instead.
+     */
+    void release(final PooledSession pooled, final long idleTimeout) {
+        pooled.permits.release();
+        if (idleTimeout <= 0 || !pooled.connection.isConnected()) {
+            destroy(pooled);
+            return;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        pooled.idleTimeout = idleTimeout;
+        synchronized (idle) {
+            Deque<PooledSession> sessions = idle.get(pooled.key);
+            if (null == sessions) {
+                sessions = new ArrayDeque<PooledSession>();
+                idle.put(pooled.key, sessions);
+            }
+            sessions.push(pooled);
+        }
+    }
+
+    /**
+     * Discard a leased session that failed, closing it rather than returning it to the pool.
+     */
+    void invalidate(final PooledSession pooled) {
+        pooled.permits.release();
+        destroy(pooled);
+    }
+
+    /**
+     * Close every idle session that has exceeded its idle timeout or whose connection has dropped.
+     */
+    void evictIdle() {
+        final List<PooledSession> expired = new ArrayList<PooledSession>();
+        synchronized (idle) {
+            for (Iterator<Deque<PooledSession>> it = idle.values().iterator(); it.hasNext(); ) {
+                Deque<PooledSession> sessions = it.next();
+                for (Iterator<PooledSession> sit = sessions.iterator(); sit.hasNext(); ) {
+                    PooledSession pooled = sit.next();
+                    if (!pooled.isHealthy(pooled.idleTimeout, maxSessionAge)) {
+                        sit.remove();
+                        expired.add(pooled);
+                    }
+                }
+                if (sessions.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        for (PooledSession pooled : expired) {
+            destroy(pooled);
+        }
+    }
+
+    private PooledSession pollIdle(final String key) {
+        synchronized (idle) {
+            Deque<PooledSession> sessions = idle.get(key);
+            return null != sessions ? sessions.poll() : null;
+        }
+    }
+
+    private Semaphore permitsFor(final String hostname, final int maxPerHost) {
+        synchronized (hostPermits) {
+            HostPermits permits = hostPermits.get(hostname.toLowerCase());
+            if (null == permits) {
+                permits = new HostPermits(Math.max(1, maxPerHost));
+                hostPermits.put(hostname.toLowerCase(), permits);
+            } else {
+                permits.resize(Math.max(1, maxPerHost));
+            }
+            return permits;
+        }
+    }
+
+    private void retainConnection(final Connection connection) {
+        synchronized (connectionUsers) {
+            Integer users = connectionUsers.get(connection);
+            connectionUsers.put(connection, null != users ? users + 1 : 1);
+        }
+    }
+
+    private void releaseConnection(final Connection connection) {
+        final boolean last;
+        synchronized (connectionUsers) {
+            Integer users = connectionUsers.get(connection);
+            last = null == users || users <= 1;
+            if (last) {
+                connectionUsers.remove(connection);
+            } else {
+                connectionUsers.put(connection, users - 1);
+            }
+        }
+        // SMBClient hands out one shared Connection per host, so only close it once no pooled session uses it
+        if (last) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void destroy(final PooledSession pooled) {
+        pooled.closeShares();
+        try {
+            pooled.session.close();
+        } catch (Exception e) {
+        }
+        releaseConnection(pooled.connection);
+    }
+
+    /**
+     * The sessions a host may have leased out, resized when the configured limit changes. Sessions leased under the
+     * old limit give their permits back as usual; after a shrink, new leases wait until the count is under the new
+     * limit.
+     */
+    private static class HostPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int max;
+
+        HostPermits(final int max) {
+            super(max, true);
+            this.max = max;
+        }
+
+        synchronized void resize(final int newMax) {
+            if (newMax > max) {
+                release(newMax - max);
+            } else if (newMax < max) {
+                reducePermits(max - newMax);
+            }
+            max = newMax;
+        }
+    }
+
+    /**
+     * An authenticated session leased from the pool, along with the shares connected through it.
+     */
+    static class PooledSession {
+        private final String key;
+        private final String hostname;
+        private final Connection connection;
+        private final Session session;
+        private final Semaphore permits;
+        private final Map<String, DiskShare> shares = new HashMap<String, DiskShare>();
+        private final ReentrantLock sharesLock = new ReentrantLock();
+        private final long created = System.currentTimeMillis();
+        private volatile long lastUsed = created;
+        private volatile long idleTimeout;
+        private boolean reused;
+
+        PooledSession(
+                final String key,
+                final String hostname,
+                final Connection connection,
+                final Session session,
+                final Semaphore permits
+        )
+        {
+            this.key = key;
+            this.hostname = hostname;
+            this.connection = connection;
+            this.session = session;
+            this.permits = permits;
+        }
+
+        String getHostname() {
+            return hostname;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        Session getSession() {
+            return session;
+        }
+
+        /**
+         * @return true if this session was taken from the pool rather than freshly authenticated
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Connect to a share through this session, reusing the tree connect from an earlier copy if it is still
+         * connected.
+         */
+        DiskShare connectShare(final String shareName) {
+            // A lock rather than a monitor: the tree connect waits on the server, which would pin a virtual thread
+            sharesLock.lock();
+            try {
+                DiskShare share = shares.get(shareName);
+                if (null == share || !share.isConnected()) {
+                    share = (DiskShare) session.connectShare(shareName);
+                    shares.put(shareName, share);
+                }
+                return share;
+            } finally {
+                sharesLock.unlock();
+            }
+        }
+
+        boolean isHealthy(final long idleTimeout, final long maxAge) {
+            final long now = System.currentTimeMillis();
+            return connection.isConnected() && now - lastUsed < idleTimeout && now - created < maxAge;
+        }
+
+        /**
+         * Check that a session idle for longer than validateAfter is still answered. A connection dropped by a
+         * firewall or the server is not noticed by the client until it sends a request.
+         */
+        boolean isAlive(final long validateAfter) {
+            if (System.currentTimeMillis() - lastUsed < validateAfter) {
+                return true;
+            }
+            try {
+                final SMB2Packet response = Futures.get(
+                        session.<SMB2Packet>send(new SMB2Echo(connection.getNegotiatedProtocol().getDialect())),
+                        connection.getConfig().getTransactTimeout(), TimeUnit.MILLISECONDS,
+                        TransportException.Wrapper);
+                return response.getHeader().getStatus().isSuccess();
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        private void closeShares() {
+            sharesLock.lock();
+            try {
+                for (DiskShare share : shares.values()) {
+                    try {
+                        share.close();
+                    } catch (Exception e) {
+                    }
+                }
+                shares.clear();
+            } finally {
+                sharesLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SmbCopyMetrics times the phases of a single copy to a node and counts the bytes transferred and the retries.
+ * When the copy is finished the metrics are added to the totals for the host, see {@link SmbHostStats}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbCopyMetrics {
+
+    enum Phase {
+        QUEUE("queue"),
+        RESOLVE("resolve"),
+        CONNECT("connect"),
+        AUTHENTICATE("authenticate"),
+        SHARE_CONNECT("share"),
+        MKDIR("mkdir"),
+        TRANSFER("transfer"),
+        VERIFY("verify");
+
+        private final String label;
+
+        Phase(final String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    private final String hostname;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final long started = System.nanoTime();
+    private long finished;
+    private long bytes;
+    private int retries;
+    private boolean reused;
+    private boolean skipped;
+    private boolean failed;
+
+    SmbCopyMetrics(final String hostname) {
+        this.hostname = hostname;
+    }
+
+    /**
+     * @return a start time to pass to {@link #stop(Phase, long)}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since start to the phase.
+     */
+    void stop(final Phase phase, final long start) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    void addBytes(final long count) {
+        bytes += count;
+    }
+
+    void retried() {
+        retries++;
+    }
+
+    void setReused(final boolean reused) {
+        this.reused = reused;
+    }
+
+    void setSkipped(final boolean skipped) {
+        this.skipped = skipped;
+    }
+
+    String getHostname() {
+        return hostname;
+    }
+
+    long getNanos(final Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    boolean isSkipped() {
+        return skipped;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    long getTotalNanos() {
+        return finished - started;
+    }
+
+    /**
+     * @return the transfer rate in bytes per second over the time spent in the transfer phase
+     */
+    long getBytesPerSecond() {
+        final long nanos = getNanos(Phase.TRANSFER);
+        return nanos > 0 ? (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos) : 0;
+    }
+
+    /**
+     * Finish the copy and add its metrics to the host totals.
+     */
+    void finish(final boolean failed) {
+        this.failed = failed;
+        this.finished = System.nanoTime();
+        SmbHostStats.forHost(hostname).record(this);
+    }
+
+    /**
+     * @return a single line summary of the copy, as space separated key=value pairs
+     */
+    String summary() {
+        final StringBuilder line = new StringBuilder("smb-copy-metrics");
+        line.append(" host=").append(hostname);
+        line.append(" status=").append(failed ? "failed" : skipped ? "skipped" : "ok");
+        line.append(" session=").append(reused ? "reused" : "new");
+        line.append(" bytes=").append(bytes);
+        line.append(" rate_bps=").append(getBytesPerSecond());
+        line.append(" retries=").append(retries);
+        line.append(" total_ms=").append(TimeUnit.NANOSECONDS.toMillis(getTotalNanos()));
+        for (Phase phase : Phase.values()) {
+            line.append(' ').append(phase.getLabel()).append("_ms=")
+                .append(TimeUnit.NANOSECONDS.toMillis(getNanos(phase)));
+        }
+        return line.toString();
+    }
+}
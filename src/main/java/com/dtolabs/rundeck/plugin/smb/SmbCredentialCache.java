@@ -0,0 +1,194 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * SmbCredentialCache keeps passwords read from the Rundeck key storage, and the settings resolved for each node,
+ * so that a copy to many nodes reads the storage backend and resolves the properties once rather than per node.
+ * <p>
+ * Passwords are keyed by project, execution user and storage path and held as char arrays, which are zeroed when
+ * the entry expires, is evicted or is invalidated after a failed logon. The key storage checks that the user may
+ * read a key, so a password read for one user is never handed to another. Callers get their own copy of a password. Node settings are
+ * keyed by project and node name, and only used while the node attributes are unchanged.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbCredentialCache {
+    private static final int MAX_SECRETS = 1000;
+    private static final int MAX_NODES = 10000;
+
+    private static final SmbCredentialCache INSTANCE = new SmbCredentialCache(MAX_SECRETS, MAX_NODES);
+
+    static SmbCredentialCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Secret> secrets;
+    private final Map<String, NodeEntry> nodes;
+
+    SmbCredentialCache(final int maxSecrets, final int maxNodes) {
+        this.secrets = new LinkedHashMap<String, Secret>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Secret> eldest) {
+                if (size() > maxSecrets) {
+                    eldest.getValue().clear();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.nodes = new LinkedHashMap<String, NodeEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, NodeEntry> eldest) {
+                return size() > maxNodes;
+            }
+        };
+    }
+
+    private static String key(final String frameworkProject, final String name) {
+        return frameworkProject + "|" + name;
+    }
+
+    private static String key(final String frameworkProject, final String user, final String storagePath) {
+        return frameworkProject + "|" + user + "|" + storagePath;
+    }
+
+    /**
+     * @param user the user the execution runs as, who read the password from key storage
+     *
+     * @return a copy of the cached password, or null if it is not cached or has expired
+     */
+    synchronized char[] getSecret(final String frameworkProject, final String user, final String storagePath) {
+        final String key = key(frameworkProject, user, storagePath);
+        final Secret secret = secrets.get(key);
+        if (null == secret) {
+            return null;
+        }
+        if (secret.expires <= System.currentTimeMillis()) {
+            secrets.remove(key).clear();
+            return null;
+        }
+        return secret.value.clone();
+    }
+
+    /**
+     * Cache a copy of the password.
+     *
+     * @param ttl how long the password is cached, in milliseconds. 0 disables the cache
+     */
+    synchronized void putSecret(
+            final String frameworkProject,
+            final String user,
+            final String storagePath,
+            final char[] value,
+            final long ttl
+    )
+    {
+        if (ttl <= 0) {
+            return;
+        }
+        final Secret previous = secrets.put(key(frameworkProject, user, storagePath),
+                new Secret(value.clone(), System.currentTimeMillis() + ttl));
+        if (null != previous) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Forget the password, after a logon with it failed.
+     */
+    synchronized void invalidateSecret(final String frameworkProject, final String user, final String storagePath) {
+        final Secret secret = secrets.remove(key(frameworkProject, user, storagePath));
+        if (null != secret) {
+            secret.clear();
+        }
+    }
+
+    /**
+     * @return the cached settings of the node, or null if they are not cached, have expired or the node attributes
+     * have changed since
+     */
+    synchronized SmbNodeSettings getNodeSettings(
+            final String frameworkProject,
+            final String nodename,
+            final Map<String, String> attributes
+    )
+    {
+        final String key = key(frameworkProject, nodename);
+        final NodeEntry entry = nodes.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis() || !entry.attributes.equals(attributes)) {
+            nodes.remove(key);
+            return null;
+        }
+        return entry.settings;
+    }
+
+    /**
+     * @param ttl how long the settings are cached, in milliseconds. 0 disables the cache
+     */
+    synchronized void putNodeSettings(
+            final String frameworkProject,
+            final String nodename,
+            final Map<String, String> attributes,
+            final SmbNodeSettings settings,
+            final long ttl
+    )
+    {
+        if (ttl <= 0) {
+            return;
+        }
+        nodes.put(key(frameworkProject, nodename), new NodeEntry(new HashMap<String, String>(attributes), settings,
+                System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Remove expired entries, zeroing expired passwords.
+     */
+    synchronized void evictExpired() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Secret> it = secrets.values().iterator(); it.hasNext(); ) {
+            final Secret secret = it.next();
+            if (secret.expires <= now) {
+                secret.clear();
+                it.remove();
+            }
+        }
+        for (Iterator<NodeEntry> it = nodes.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Secret {
+        private final char[] value;
+        private final long expires;
+
+        Secret(final char[] value, final long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        void clear() {
+            Arrays.fill(value, '\0');
+        }
+    }
+
+    private static class NodeEntry {
+        private final Map<String, String> attributes;
+        private final SmbNodeSettings settings;
+        private final long expires;
+
+        NodeEntry(final Map<String, String> attributes, final SmbNodeSettings settings, final long expires) {
+            this.attributes = attributes;
+            this.settings = settings;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * SmbDirectoryCache remembers remote directories that are known to exist, so that repeated uploads into the same
+ * directory tree skip the folderExists and mkdir round-trip for every path component.
+ * <p>
+ * Entries are keyed by host, share and directory path and expire after a time to live. They are invalidated when a
+ * write into the directory fails because the path no longer exists.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbDirectoryCache {
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final SmbDirectoryCache INSTANCE = new SmbDirectoryCache(MAX_ENTRIES);
+
+    static SmbDirectoryCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Long> known;
+
+    SmbDirectoryCache(final int maxEntries) {
+        this.known = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static String key(final String hostname, final String shareName, final String directory) {
+        // Windows paths are case insensitive
+        return (hostname + "|" + shareName + "|" + directory).toLowerCase();
+    }
+
+    /**
+     * Make sure the directory exists on the share, creating any missing parent directories. Only directories not
+     * already known to exist are checked on the share.
+     *
+     * @param directory backslash separated directory path relative to the share root, or "" for the root
+     * @param ttl       how long a directory is remembered, in milliseconds. 0 disables the cache
+     */
+    void mkdirs(
+            final DiskShare share,
+            final String hostname,
+            final String shareName,
+            final String directory,
+            final long ttl
+    )
+    {
+        if (directory.isEmpty() || isKnown(hostname, shareName, directory)) {
+            return;
+        }
+        int end = -1;
+        do {
+            end = directory.indexOf('\\', end + 1);
+            final String parent = end < 0 ? directory : directory.substring(0, end);
+            if (!isKnown(hostname, shareName, parent)) {
+                if (!share.folderExists(parent)) {
+                    // Directory does not exist, create
+                    try {
+                        share.mkdir(parent);
+                    } catch (SMBApiException e) {
+                        // Created by a concurrent copy to the same host in the meantime
+                        if (e.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                            throw e;
+                        }
+                    }
+                }
+                remember(hostname, shareName, parent, ttl);
+            }
+        } while (end >= 0);
+    }
+
+    /**
+     * Create a single directory whose parent is known to exist, unless it is already known to exist itself. Takes
+     * one round-trip, where {@link #mkdirs} checks every path component.
+     *
+     * @param ttl how long the directory is remembered, in milliseconds. 0 disables the cache
+     */
+    void mkdir(
+            final DiskShare share,
+            final String hostname,
+            final String shareName,
+            final String directory,
+            final long ttl
+    )
+    {
+        if (isKnown(hostname, shareName, directory)) {
+            return;
+        }
+        try {
+            share.mkdir(directory);
+        } catch (SMBApiException e) {
+            // Left by an earlier copy, or created by a concurrent copy to the same host in the meantime
+            if (e.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                throw e;
+            }
+        }
+        remember(hostname, shareName, directory, ttl);
+    }
+
+    /**
+     * Forget the directory and all of its parents, after a write into it failed because the path was not found.
+     */
+    synchronized void invalidate(final String hostname, final String shareName, final String directory) {
+        int end = directory.length();
+        while (end > 0) {
+            known.remove(key(hostname, shareName, directory.substring(0, end)));
+            end = directory.lastIndexOf('\\', end - 1);
+        }
+    }
+
+    private synchronized boolean isKnown(final String hostname, final String shareName, final String directory) {
+        final String key = key(hostname, shareName, directory);
+        final Long expires = known.get(key);
+        if (null == expires) {
+            return false;
+        }
+        if (expires <= System.currentTimeMillis()) {
+            known.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void remember(
+            final String hostname,
+            final String shareName,
+            final String directory,
+            final long ttl
+    )
+    {
+        if (ttl > 0) {
+            known.put(key(hostname, shareName, directory), System.currentTimeMillis() + ttl);
+        }
+    }
+}
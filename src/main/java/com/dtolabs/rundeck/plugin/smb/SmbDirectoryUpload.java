@@ -0,0 +1,341 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * SmbDirectoryUpload copies a local directory tree to a remote share over a single session.
+ * <p>
+ * The remote directories are created first, in breadth-first order so that every parent already exists and each
+ * directory takes a single create. The files are then uploaded over several concurrent file handles on the same
+ * share. Each stream takes the next file from a queue shared by all streams, so that every stream stays busy until
+ * the queue is empty, even for a tree of a few small files. Each file takes its own create, write and close round
+ * trips, so spreading small files over the streams overlaps those round trips. Large files are queued first, so
+ * that one doesn't start last and leave the other streams idle while it finishes.
+ * <p>
+ * An upload can be repeated on a new share after a transport error: files already completed are not uploaded
+ * again, and files cut short resume where they got to. Each attempt works on its own copy of that progress, which
+ * is only kept once all of the attempt's workers have stopped. An attempt whose workers don't stop fails, and its
+ * progress is dropped, so that a worker still running never shares an uploader with the next attempt.
+ * <p>
+ * With verification on, each file is read back after its upload and checked against the digest computed while
+ * it was sent, see {@link SmbVerifier}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbDirectoryUpload {
+    private final File localRoot;
+    private final List<String> directories = new ArrayList<String>();
+    private final List<String> files = new ArrayList<String>();
+    private final List<String> queue = new ArrayList<String>();
+    private final int bufferSize;
+    private final int maxOutstanding;
+    private final int streams;
+    private final SmbSync.Mode syncMode;
+    private final boolean verify;
+    private final Set<String> completed = new HashSet<String>();
+    private final Map<String, SmbUploader> uploaders = new HashMap<String, SmbUploader>();
+    private int skipped;
+    private int verified;
+
+    /**
+     * Walk the local directory tree.
+     *
+     * @param bufferSize     the write chunk size of each file upload; larger files are queued first
+     * @param maxOutstanding the maximum number of write requests in flight per file
+     * @param streams        the number of files uploaded concurrently
+     * @param verify         true to read back and verify each file after it is uploaded
+     */
+    SmbDirectoryUpload(
+            final File localRoot,
+            final int bufferSize,
+            final int maxOutstanding,
+            final int streams,
+            final SmbSync.Mode syncMode,
+            final boolean verify
+    ) throws IOException
+    {
+        this.localRoot = localRoot;
+        this.bufferSize = bufferSize;
+        this.maxOutstanding = maxOutstanding;
+        this.streams = Math.max(1, streams);
+        this.syncMode = syncMode;
+        this.verify = verify;
+        walk();
+    }
+
+    private void walk() throws IOException {
+        if (!localRoot.isDirectory()) {
+            throw new IOException("Not a directory: " + localRoot);
+        }
+        final Deque<String> pending = new ArrayDeque<String>();
+        pending.add("");
+        final List<String> small = new ArrayList<String>();
+        while (!pending.isEmpty()) {
+            final String directory = pending.poll();
+            final File[] children = new File(localRoot, directory.replace('\\', File.separatorChar)).listFiles();
+            if (null == children) {
+                throw new IOException("Unable to list directory: " + new File(localRoot, directory));
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                final String relative = directory.isEmpty() ? child.getName() : directory + "\\" + child.getName();
+                if (child.isDirectory()) {
+                    directories.add(relative);
+                    pending.add(relative);
+                } else {
+                    files.add(relative);
+                    if (child.length() > bufferSize) {
+                        queue.add(relative);
+                    } else {
+                        small.add(relative);
+                    }
+                }
+            }
+        }
+        queue.addAll(small);
+    }
+
+    /**
+     * Create the remote directories and upload the files not yet completed by an earlier attempt.
+     * <p>
+     * When a file upload fails, the other workers are interrupted right away and given up to the connection's write timeout
+     * to stop.
+     *
+     * @param remoteRoot the backslash separated path of the remote directory relative to the share root
+     * @param ttl        the directory cache time to live, in milliseconds
+     * @param ticket     the scheduler ticket shared by the file uploads, or null
+     *
+     * @return the number of bytes written
+     */
+    long upload(
+            final DiskShare share,
+            final String hostname,
+            final String shareName,
+            final String remoteRoot,
+            final SmbDirectoryCache directoryCache,
+            final long ttl,
+            final SmbTransferScheduler.Ticket ticket
+    ) throws IOException, InterruptedException
+    {
+        directoryCache.mkdirs(share, hostname, shareName, remoteRoot, ttl);
+        for (String directory : directories) {
+            directoryCache.mkdir(share, hostname, shareName, remotePath(remoteRoot, directory), ttl);
+        }
+
+        final Attempt attempt = new Attempt();
+        final ConcurrentLinkedQueue<String> remaining = new ConcurrentLinkedQueue<String>();
+        for (String file : queue) {
+            if (!attempt.completed.contains(file)) {
+                remaining.add(file);
+            }
+        }
+        final int workers = Math.min(streams, Math.max(1, remaining.size()));
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-directory-upload", workers);
+        Throwable failure = null;
+        try {
+            // Streams are waited for as they finish, so that the first failure stops the others right away
+            final CompletionService<Void> uploads = new ExecutorCompletionService<Void>(executor);
+            for (int i = 0; i < workers; i++) {
+                uploads.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        String file;
+                        while (null != (file = remaining.poll())) {
+                            if (Thread.interrupted()) {
+                                // Another stream failed
+                                throw new InterruptedException();
+                            }
+                            attempt.written.addAndGet(uploadFile(share, remotePath(remoteRoot, file), file,
+                                    ticket, attempt));
+                            attempt.completed.add(file);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < workers; i++) {
+                try {
+                    uploads.take().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    } else if (e.getCause() instanceof InterruptedException) {
+                        throw (InterruptedException) e.getCause();
+                    } else if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            stop(executor, share.getTreeConnect().getSession().getConnection().getConfig().getWriteTimeout(),
+                    attempt, failure);
+        }
+        return attempt.written.get();
+    }
+
+    /**
+     * Interrupt the workers and wait for them to stop, then keep the progress of the attempt. If they don't stop in
+     * time, the attempt fails: a failure already thrown gets the reason added, otherwise it is thrown.
+     */
+    private void stop(
+            final ExecutorService executor,
+            final long timeout,
+            final Attempt attempt,
+            final Throwable failure
+    ) throws IOException
+    {
+        executor.shutdownNow();
+        boolean stopped;
+        try {
+            stopped = executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = false;
+        }
+        if (stopped) {
+            completed.addAll(attempt.completed);
+            uploaders.clear();
+            uploaders.putAll(attempt.uploaders);
+            skipped += attempt.skipped.get();
+            verified += attempt.verified.get();
+            return;
+        }
+        final IOException stuck = new IOException("Directory upload workers did not stop within " + timeout
+                + " ms, progress of this attempt is discarded");
+        if (null == failure) {
+            throw stuck;
+        }
+        failure.addSuppressed(stuck);
+    }
+
+    private long uploadFile(
+            final DiskShare share,
+            final String path,
+            final String file,
+            final SmbTransferScheduler.Ticket ticket,
+            final Attempt attempt
+    ) throws IOException, InterruptedException
+    {
+        final SmbPayload payload = SmbPayload.forFile(new File(localRoot, file.replace('\\', File.separatorChar)),
+                false);
+        final SmbSync sync = new SmbSync(syncMode, payload);
+        if (sync.isCurrent(share, path)) {
+            attempt.skipped.incrementAndGet();
+            return 0;
+        }
+        SmbUploader uploader = attempt.uploaders.get(file);
+        if (null == uploader) {
+            uploader = new SmbUploader(bufferSize, maxOutstanding, verify);
+            attempt.uploaders.put(file, uploader);
+        }
+        final long written = uploader.upload(share, path, payload, ticket);
+        if (verify) {
+            new SmbVerifier(bufferSize, maxOutstanding).verify(share, path, payload);
+            attempt.verified.incrementAndGet();
+        }
+        attempt.uploaders.remove(file);
+        try {
+            sync.uploaded(share, path);
+        } catch (SMBApiException e) {
+            // The share may not support alternate data streams or setting times, the copy itself succeeded
+        }
+        return written;
+    }
+
+    private static String remotePath(final String remoteRoot, final String relative) {
+        return remoteRoot.isEmpty() ? relative : remoteRoot + "\\" + relative;
+    }
+
+    /**
+     * @return the backslash separated paths of the files, relative to the local root
+     */
+    List<String> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return the number of files
+     */
+    int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the number of remote directories below the remote root
+     */
+    int getDirectoryCount() {
+        return directories.size();
+    }
+
+    /**
+     * @return the number of files not uploaded because the remote file was already current
+     */
+    int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of files read back and verified after their upload
+     */
+    int getVerified() {
+        return verified;
+    }
+
+    /**
+     * @return the number of bytes written to files that have not completed yet, as of the last attempt whose workers
+     * stopped
+     */
+    long getAcknowledged() {
+        long acknowledged = 0;
+        for (SmbUploader uploader : uploaders.values()) {
+            acknowledged += uploader.getAcknowledged();
+        }
+        return acknowledged;
+    }
+
+    /**
+     * The progress of one attempt, started from a copy of the progress kept from earlier attempts.
+     */
+    private class Attempt {
+        private final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Map<String, SmbUploader> uploaders = new ConcurrentHashMap<String, SmbUploader>();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger verified = new AtomicInteger();
+        private final AtomicLong written = new AtomicLong();
+
+        Attempt() {
+            completed.addAll(SmbDirectoryUpload.this.completed);
+            for (Map.Entry<String, SmbUploader> entry : SmbDirectoryUpload.this.uploaders.entrySet()) {
+                uploaders.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SmbExecutors runs copies off the calling thread.
+ * <p>
+ * A copy spends nearly all of its time waiting: for the connect, for the server's responses and in retry backoff.
+ * On Java 21 and later each task runs on a virtual thread, which gives up its carrier thread while it waits, so
+ * thousands of concurrent node copies need only a few platform threads. On older JVMs the tasks run on daemon
+ * platform threads, as before, at most {@link #MAX_SHARED_THREADS} of them for the shared executor. The plugin is
+ * compiled for Java 8, so virtual threads are looked up reflectively. On Java 19 and 20 they are a preview feature
+ * that fails unless enabled, so an executor on them is created once up front, falling back to platform threads.
+ * <p>
+ * Executors created with a concurrency limit keep it either way: on virtual threads the tasks beyond the limit wait
+ * for a permit, which costs no platform thread.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbExecutors {
+    private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+    private static final Method NAME = method(className("java.lang.Thread$Builder"), "name", String.class);
+    private static final Method FACTORY = method(className("java.lang.Thread$Builder"), "factory");
+    private static final Method THREAD_PER_TASK = method(Executors.class, "newThreadPerTaskExecutor",
+            ThreadFactory.class);
+    private static final boolean VIRTUAL = null != virtualExecutor(OF_VIRTUAL, "smb-copy");
+
+    /**
+     * The platform threads of the shared executor where the JVM has no virtual threads, each blocked for the length
+     * of a copy. Further copies queue for a thread.
+     */
+    static final int MAX_SHARED_THREADS = 64;
+
+    private static final Executor SHARED = newSharedExecutor("smb-copy");
+
+    private SmbExecutors() {
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * @return the executor of asynchronous copies: on virtual threads unbounded, the connection pool and transfer
+     * scheduler limit what the copies do at once; otherwise bounded by {@link #MAX_SHARED_THREADS}
+     */
+    static Executor shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param name          the name of the threads
+     * @param maxConcurrent the maximum number of tasks running at once
+     *
+     * @return an executor to be shut down by the caller once its tasks are done
+     */
+    static ExecutorService newExecutor(final String name, final int maxConcurrent) {
+        final int threads = Math.max(1, maxConcurrent);
+        if (isVirtual()) {
+            return new LimitedExecutor(newVirtualExecutor(name), threads);
+        }
+        return Executors.newFixedThreadPool(threads, daemonFactory(name));
+    }
+
+    /**
+     * Run the task on the executor.
+     *
+     * @return a future completed with the result of the task, or exceptionally with the exception it threw.
+     * Cancelling it skips the task if it has not started yet, or interrupts the thread running it.
+     */
+    static <T> CompletableFuture<T> submit(final Executor executor, final Callable<T> task) {
+        final Task<T> future = new Task<T>(task);
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * @return a new executor like the shared one
+     */
+    static ExecutorService newSharedExecutor(final String name) {
+        if (isVirtual()) {
+            return newVirtualExecutor(name);
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SHARED_THREADS, MAX_SHARED_THREADS,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemonFactory(name));
+        // Idle threads end, as they did in the cached pool this replaces
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newVirtualExecutor(final String name) {
+        final ExecutorService executor = virtualExecutor(OF_VIRTUAL, name);
+        if (null == executor) {
+            throw new IllegalStateException("Unable to create virtual threads");
+        }
+        return executor;
+    }
+
+    /**
+     * @param ofVirtual the method returning a builder of virtual threads
+     *
+     * @return an executor running each task on a new virtual thread, or null if the JVM can't create them
+     */
+    static ExecutorService virtualExecutor(final Method ofVirtual, final String name) {
+        if (null == ofVirtual || null == NAME || null == FACTORY || null == THREAD_PER_TASK) {
+            return null;
+        }
+        try {
+            final Object builder = NAME.invoke(ofVirtual.invoke(null), name);
+            return (ExecutorService) THREAD_PER_TASK.invoke(null, FACTORY.invoke(builder));
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // Thrown on Java 19 and 20 unless preview features are enabled, wrapped by the reflective call
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(final String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static Class<?> className(final String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method method(final Class<?> type, final String name, final Class<?>... parameterTypes) {
+        if (null == type) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A task whose future interrupts it when cancelled. CompletableFuture on its own only completes the future and
+     * leaves the task running.
+     */
+    private static class Task<T> extends CompletableFuture<T> implements Runnable {
+        private final Callable<T> callable;
+        private Thread runner;
+
+        Task(final Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    // Cancelled before it started
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                complete(callable.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+            }
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (this) {
+                    if (null != runner) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * A thread per task executor that runs at most a number of its tasks at once.
+     */
+    static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        LimitedExecutor(final ExecutorService delegate, final int maxConcurrent) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        public void execute(final Runnable command) {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // Shut down while waiting: abandon the task, cancelling its future so that no one waits for it
+                    Thread.currentThread().interrupt();
+                    if (command instanceof Future) {
+                        ((Future<?>) command).cancel(false);
+                    }
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -4,6 +4,7 @@ package com.dtolabs.rundeck.plugin.smb;
 import com.dtolabs.rundeck.core.Constants;
 import com.dtolabs.rundeck.core.common.Framework;
 import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
 import com.dtolabs.rundeck.core.dispatcher.DataContextUtils;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.execution.impl.common.BaseFileCopier;
@@ -23,14 +24,11 @@ import com.dtolabs.rundeck.core.tasks.net.SSHTaskBuilder;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 import com.dtolabs.rundeck.plugins.util.PropertyBuilder;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMBApiException;
 import com.hierynomus.ntlm.messages.WindowsVersion;
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.auth.AuthenticationContext;
-import com.hierynomus.smbj.connection.Connection;
 import com.hierynomus.smbj.connection.ConnectionInfo;
-import com.hierynomus.smbj.session.Session;
 import com.hierynomus.smbj.share.DiskShare;
-import com.hierynomus.smbj.utils.SmbFiles;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -38,7 +36,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -62,6 +73,35 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
     public static final String SMB_PASSWORD_STORAGE_PATH = "smb-password-storage-path";
     public static final String SMB_RETRY_MAX = "smb-retry-max";
     public static final String SMB_RETRY_DELAY = "smb-retry-delay";
+    public static final String SMB_RETRY_BACKOFF_MULTIPLIER = "smb-retry-backoff-multiplier";
+    public static final String SMB_RETRY_MAX_DELAY = "smb-retry-max-delay";
+    public static final String SMB_CIRCUIT_BREAKER_THRESHOLD = "smb-circuit-breaker-threshold";
+    public static final String SMB_CIRCUIT_BREAKER_COOLDOWN = "smb-circuit-breaker-cooldown";
+    public static final String SMB_POOL_MAX_PER_HOST = "smb-pool-max-per-host";
+    public static final String SMB_POOL_IDLE_TIMEOUT = "smb-pool-idle-timeout";
+    public static final String SMB_STREAMING_UPLOAD = "smb-streaming-upload";
+    public static final String SMB_UPLOAD_BUFFER_SIZE = "smb-upload-buffer-size";
+    public static final String SMB_WRITE_OUTSTANDING = "smb-write-outstanding";
+    public static final String SMB_FANOUT_THREADS = "smb-fanout-threads";
+    public static final String SMB_DIRECTORY_CACHE_TTL = "smb-directory-cache-ttl";
+    public static final String SMB_SYNC_MODE = "smb-sync-mode";
+    public static final String SMB_CREDENTIAL_CACHE_TTL = "smb-credential-cache-ttl";
+    public static final String SMB_DIRECTORY_STREAMS = "smb-directory-streams";
+    public static final String SMB_READ_BUFFER_SIZE = "smb-read-buffer-size";
+    public static final String SMB_WRITE_BUFFER_SIZE = "smb-write-buffer-size";
+    public static final String SMB_TRANSACT_BUFFER_SIZE = "smb-transact-buffer-size";
+    public static final String SMB_TIMEOUT = "smb-timeout";
+    public static final String SMB_SOCKET_TIMEOUT = "smb-socket-timeout";
+    public static final String SMB_DIALECTS = "smb-dialects";
+    public static final String SMB_SIGNING_REQUIRED = "smb-signing-required";
+    public static final String SMB_BANDWIDTH_LIMIT = "smb-bandwidth-limit";
+    public static final String SMB_SITE_BANDWIDTH_LIMIT = "smb-site-bandwidth-limit";
+    public static final String SMB_HOST_BANDWIDTH_LIMIT = "smb-host-bandwidth-limit";
+    public static final String SMB_MAX_TRANSFERS = "smb-max-transfers";
+    public static final String SMB_SITE = "smb-site";
+    public static final String SMB_VERIFY = "smb-verify";
+    public static final String SMB_SHARE_MAP = "smb-share-map";
+    public static final String SMB_PREWARM = "smb-prewarm";
     
     public static final String SMB_USER = "smb-user";
 
@@ -72,9 +112,65 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
     //Config properties for GUI
     private static final String CONFIG_RETRY_MAX = "retry-max";
     private static final String CONFIG_RETRY_DELAY = "retry-delay";
+    private static final String CONFIG_RETRY_BACKOFF_MULTIPLIER = "retry-backoff-multiplier";
+    private static final String CONFIG_RETRY_MAX_DELAY = "retry-max-delay";
+    private static final String CONFIG_CIRCUIT_BREAKER_THRESHOLD = "circuit-breaker-threshold";
+    private static final String CONFIG_CIRCUIT_BREAKER_COOLDOWN = "circuit-breaker-cooldown";
+    private static final String CONFIG_POOL_MAX_PER_HOST = "pool-max-per-host";
+    private static final String CONFIG_POOL_IDLE_TIMEOUT = "pool-idle-timeout";
+    private static final String CONFIG_STREAMING_UPLOAD = "streaming-upload";
+    private static final String CONFIG_UPLOAD_BUFFER_SIZE = "upload-buffer-size";
+    private static final String CONFIG_WRITE_OUTSTANDING = "write-outstanding";
+    private static final String CONFIG_FANOUT_THREADS = "fanout-threads";
+    private static final String CONFIG_DIRECTORY_CACHE_TTL = "directory-cache-ttl";
+    private static final String CONFIG_SYNC_MODE = "sync-mode";
+    private static final String CONFIG_CREDENTIAL_CACHE_TTL = "credential-cache-ttl";
+    private static final String CONFIG_DIRECTORY_STREAMS = "directory-streams";
+    private static final String CONFIG_READ_BUFFER_SIZE = "read-buffer-size";
+    private static final String CONFIG_WRITE_BUFFER_SIZE = "write-buffer-size";
+    private static final String CONFIG_TRANSACT_BUFFER_SIZE = "transact-buffer-size";
+    private static final String CONFIG_TIMEOUT = "timeout";
+    private static final String CONFIG_SOCKET_TIMEOUT = "socket-timeout";
+    private static final String CONFIG_DIALECTS = "dialects";
+    private static final String CONFIG_SIGNING_REQUIRED = "signing-required";
+    private static final String CONFIG_BANDWIDTH_LIMIT = "bandwidth-limit";
+    private static final String CONFIG_SITE_BANDWIDTH_LIMIT = "site-bandwidth-limit";
+    private static final String CONFIG_HOST_BANDWIDTH_LIMIT = "host-bandwidth-limit";
+    private static final String CONFIG_MAX_TRANSFERS = "max-transfers";
+    private static final String CONFIG_VERIFY = "verify";
+    private static final String CONFIG_SHARE_MAP = "share-map";
+    private static final String CONFIG_PREWARM = "prewarm";
 
     public static final int DEFAULT_SMB_RETRY_MAX = 3; 
     public static final int DEFAULT_SMB_RETRY_DELAY = 15; 
+    public static final int DEFAULT_SMB_RETRY_BACKOFF_MULTIPLIER = 2;
+    public static final int DEFAULT_SMB_RETRY_MAX_DELAY = 120;
+    public static final int DEFAULT_SMB_CIRCUIT_BREAKER_THRESHOLD = 5;
+    public static final int DEFAULT_SMB_CIRCUIT_BREAKER_COOLDOWN = 60;
+    public static final int DEFAULT_SMB_POOL_MAX_PER_HOST = 8;
+    public static final int DEFAULT_SMB_POOL_IDLE_TIMEOUT = 60;
+    public static final boolean DEFAULT_SMB_STREAMING_UPLOAD = true;
+    public static final int DEFAULT_SMB_UPLOAD_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SMB_WRITE_OUTSTANDING = 8;
+    public static final int DEFAULT_SMB_FANOUT_THREADS = 16;
+    public static final int DEFAULT_SMB_DIRECTORY_CACHE_TTL = 300;
+    public static final String DEFAULT_SMB_SYNC_MODE = "off";
+    public static final int DEFAULT_SMB_CREDENTIAL_CACHE_TTL = 300;
+    public static final int DEFAULT_SMB_DIRECTORY_STREAMS = 4;
+    public static final int DEFAULT_SMB_READ_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SMB_WRITE_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SMB_TRANSACT_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SMB_TIMEOUT = 60;
+    public static final int DEFAULT_SMB_SOCKET_TIMEOUT = 0;
+    public static final String DEFAULT_SMB_DIALECTS = "2.1,2.0.2";
+    public static final boolean DEFAULT_SMB_SIGNING_REQUIRED = false;
+    public static final int DEFAULT_SMB_BANDWIDTH_LIMIT = 0;
+    public static final int DEFAULT_SMB_SITE_BANDWIDTH_LIMIT = 0;
+    public static final int DEFAULT_SMB_HOST_BANDWIDTH_LIMIT = 0;
+    public static final int DEFAULT_SMB_MAX_TRANSFERS = 0;
+    public static final boolean DEFAULT_SMB_VERIFY = false;
+    public static final String DEFAULT_SMB_SHARE_MAP = "";
+    public static final boolean DEFAULT_SMB_PREWARM = false;
     
     static final Description DESC = DescriptionBuilder.builder()
         .name(SERVICE_PROVIDER_TYPE)
@@ -84,6 +180,90 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
                 "in case of intermittent transport errors. Default: 3.", false, null)) 
         .property(PropertyUtil.longProp(CONFIG_RETRY_DELAY, "SMB retry delay", "The retry delay, " + 
                 "in seconds. Default: 5 (seconds).", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_RETRY_BACKOFF_MULTIPLIER, "SMB retry backoff multiplier", "The " + 
+                "factor the retry delay grows by on each retry. Each delay is randomized within its upper half. " + 
+                "1 retries at a fixed delay. Default: 2.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_RETRY_MAX_DELAY, "SMB retry maximum delay", "The maximum retry " + 
+                "delay, in seconds, also capping a larger retry delay. Default: 120 (seconds).", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_CIRCUIT_BREAKER_THRESHOLD, "SMB circuit breaker threshold", "The " + 
+                "number of consecutive transport errors against a host after which copies to it fail right away, " + 
+                "until a probe after the cool-down succeeds. 0 disables the circuit breaker. Default: 5.", false, 
+                null)) 
+        .property(PropertyUtil.longProp(CONFIG_CIRCUIT_BREAKER_COOLDOWN, "SMB circuit breaker cool-down", "How " + 
+                "long copies to a failing host fail right away before the host is probed again, in seconds. " + 
+                "Default: 60 (seconds).", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_POOL_MAX_PER_HOST, "SMB sessions per host", "The maximum number of " + 
+                "SMB sessions used concurrently against a single host. Default: 8.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_POOL_IDLE_TIMEOUT, "SMB session idle timeout", "How long an " + 
+                "authenticated SMB session is kept open for reuse by later copies, in seconds. 0 closes the " + 
+                "session after each copy. Default: 60 (seconds).", false, null)) 
+        .property(PropertyUtil.bool(CONFIG_STREAMING_UPLOAD, "SMB streaming upload", "Write input streams " + 
+                "directly to the remote file instead of staging them in a local temp file. Script content is " + 
+                "always copied from memory. Default: true.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_UPLOAD_BUFFER_SIZE, "SMB upload chunk size", "The size of each " + 
+                "write request, in bytes, capped at the maximum write size negotiated with the server. " + 
+                "Default: 1048576.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_WRITE_OUTSTANDING, "SMB outstanding writes", "The maximum number " + 
+                "of write requests kept in flight per file. Raise on high latency links, 1 writes sequentially. " + 
+                "Default: 8.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_FANOUT_THREADS, "SMB multi-node copy threads", "The maximum number " + 
+                "of nodes copied to concurrently when one file is copied to many nodes. The number of concurrent " + 
+                "copies to a single host is bounded by the SMB sessions per host. On Java 21 and later each copy runs " + 
+                "on a virtual thread, so this can be raised into the thousands. Default: 16.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_DIRECTORY_CACHE_TTL, "SMB directory cache TTL", "How long remote " + 
+                "directories are remembered to exist, so that later copies skip checking them, in seconds. 0 " + 
+                "disables the cache. Default: 300 (seconds).", false, null)) 
+        .property(PropertyUtil.select(CONFIG_SYNC_MODE, "SMB sync mode", "Skip the upload when the remote file is " + 
+                "already current. 'size-time' compares the size and last write time with the local file, whose " + 
+                "modification time each upload sets on the remote file, 'hash' " + 
+                "compares a SHA-256 digest stored with the remote file by the last upload. Default: off.", false, 
+                DEFAULT_SMB_SYNC_MODE, Arrays.asList("off", "size-time", "hash"))) 
+        .property(PropertyUtil.longProp(CONFIG_CREDENTIAL_CACHE_TTL, "SMB credential cache TTL", "How long " + 
+                "passwords read from key storage and the SMB settings resolved for each node are cached, in " + 
+                "seconds. Passwords are cached per execution user. A cached password is dropped when a logon with it fails. 0 disables the cache. " + 
+                "Default: 300 (seconds).", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_DIRECTORY_STREAMS, "SMB directory copy streams", "The number of " + 
+                "files uploaded concurrently over one SMB session when a directory is copied. Default: 4.", false, 
+                null)) 
+        .property(PropertyUtil.longProp(CONFIG_READ_BUFFER_SIZE, "SMB read buffer size", "The maximum size of " + 
+                "a read request, in bytes, further capped by the server. Default: 1048576.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_WRITE_BUFFER_SIZE, "SMB write buffer size", "The maximum size of " + 
+                "a write request, in bytes, further capped by the server. Bounds the upload chunk size. " + 
+                "Default: 1048576.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_TRANSACT_BUFFER_SIZE, "SMB transact buffer size", "The maximum " + 
+                "size of a transact request, such as a directory query, in bytes, further capped by the server. " + 
+                "Default: 1048576.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_TIMEOUT, "SMB response timeout", "How long to wait for the " + 
+                "response to a read, write or transact request, in seconds. Default: 60 (seconds).", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_SOCKET_TIMEOUT, "SMB socket timeout", "The read timeout of the " + 
+                "TCP socket, in seconds. 0 waits indefinitely. Default: 0.", false, null)) 
+        .property(PropertyUtil.string(CONFIG_DIALECTS, "SMB dialects", "Comma separated SMB dialects offered to " + 
+                "the server, out of 2.0.2, 2.1, 3.0, 3.0.2 and 3.1.1. Default: 2.1,2.0.2.", false, null)) 
+        .property(PropertyUtil.bool(CONFIG_SIGNING_REQUIRED, "SMB signing required", "Require all messages to be " + 
+                "signed, even when the server does not require it. Default: false.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_BANDWIDTH_LIMIT, "SMB bandwidth limit", "The combined upload " + 
+                "rate of all SMB copies, in KiB per second. 0 for no limit. Default: 0.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_SITE_BANDWIDTH_LIMIT, "SMB site bandwidth limit", "The combined " + 
+                "upload rate of the SMB copies to the nodes of a site, in KiB per second. Nodes are grouped into " + 
+                "sites by the 'smb-site' node attribute. 0 for no limit. Default: 0.", false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_HOST_BANDWIDTH_LIMIT, "SMB host bandwidth limit", "The combined " + 
+                "upload rate of the SMB copies to a single host, in KiB per second. 0 for no limit. Default: 0.", 
+                false, null)) 
+        .property(PropertyUtil.longProp(CONFIG_MAX_TRANSFERS, "SMB concurrent transfers", "The maximum number " + 
+                "of SMB copies running at once to a site, or to a host outside a site, across all jobs. Waiting " + 
+                "copies are admitted in turn per execution. 0 for no limit. Default: 0.", false, null)) 
+        .property(PropertyUtil.bool(CONFIG_VERIFY, "SMB verify uploads", "Read each uploaded file back and " + 
+                "compare its SHA-256 digest with the digest computed while it was sent. The digest is written to " + 
+                "the execution log. Default: false.", false, null)) 
+        .property(PropertyUtil.string(CONFIG_SHARE_MAP, "SMB share map", "Comma separated mappings of a path " + 
+                "on the node to the share that exports it, such as D:\\deploy=deploy. Destinations below a " + 
+                "mapped path are written through its share, other drive paths through the administrative share " + 
+                "of the drive, such as C$. UNC destinations such as \\\\server\\share\\dir are written to the " + 
+                "named share directly.", false, null)) 
+        .property(PropertyUtil.bool(CONFIG_PREWARM, "SMB session pre-warm", "On the first copy of an " + 
+                "execution, open authenticated SMB sessions to all other nodes it targets in the background, so " + 
+                "that their copies reuse a pooled session. Sessions are kept for the SMB session idle timeout. " + 
+                "Default: false.", false, null)) 
         .property(
                 PropertyBuilder.builder()
                                .string(CONFIG_PASSWORD_STORAGE_PATH)
@@ -111,6 +291,62 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
         .mapping(CONFIG_RETRY_MAX, PROJ_PROP_PREFIX + SMB_RETRY_MAX)        
         .mapping(CONFIG_RETRY_DELAY, FWK_PROP_PREFIX + SMB_RETRY_DELAY)
         .mapping(CONFIG_RETRY_DELAY, PROJ_PROP_PREFIX + SMB_RETRY_DELAY)        
+        .mapping(CONFIG_RETRY_BACKOFF_MULTIPLIER, FWK_PROP_PREFIX + SMB_RETRY_BACKOFF_MULTIPLIER)
+        .mapping(CONFIG_RETRY_BACKOFF_MULTIPLIER, PROJ_PROP_PREFIX + SMB_RETRY_BACKOFF_MULTIPLIER)
+        .mapping(CONFIG_RETRY_MAX_DELAY, FWK_PROP_PREFIX + SMB_RETRY_MAX_DELAY)
+        .mapping(CONFIG_RETRY_MAX_DELAY, PROJ_PROP_PREFIX + SMB_RETRY_MAX_DELAY)
+        .mapping(CONFIG_CIRCUIT_BREAKER_THRESHOLD, FWK_PROP_PREFIX + SMB_CIRCUIT_BREAKER_THRESHOLD)
+        .mapping(CONFIG_CIRCUIT_BREAKER_THRESHOLD, PROJ_PROP_PREFIX + SMB_CIRCUIT_BREAKER_THRESHOLD)
+        .mapping(CONFIG_CIRCUIT_BREAKER_COOLDOWN, FWK_PROP_PREFIX + SMB_CIRCUIT_BREAKER_COOLDOWN)
+        .mapping(CONFIG_CIRCUIT_BREAKER_COOLDOWN, PROJ_PROP_PREFIX + SMB_CIRCUIT_BREAKER_COOLDOWN)
+        .mapping(CONFIG_POOL_MAX_PER_HOST, FWK_PROP_PREFIX + SMB_POOL_MAX_PER_HOST)
+        .mapping(CONFIG_POOL_MAX_PER_HOST, PROJ_PROP_PREFIX + SMB_POOL_MAX_PER_HOST)
+        .mapping(CONFIG_POOL_IDLE_TIMEOUT, FWK_PROP_PREFIX + SMB_POOL_IDLE_TIMEOUT)
+        .mapping(CONFIG_POOL_IDLE_TIMEOUT, PROJ_PROP_PREFIX + SMB_POOL_IDLE_TIMEOUT)
+        .mapping(CONFIG_STREAMING_UPLOAD, FWK_PROP_PREFIX + SMB_STREAMING_UPLOAD)
+        .mapping(CONFIG_STREAMING_UPLOAD, PROJ_PROP_PREFIX + SMB_STREAMING_UPLOAD)
+        .mapping(CONFIG_UPLOAD_BUFFER_SIZE, FWK_PROP_PREFIX + SMB_UPLOAD_BUFFER_SIZE)
+        .mapping(CONFIG_UPLOAD_BUFFER_SIZE, PROJ_PROP_PREFIX + SMB_UPLOAD_BUFFER_SIZE)
+        .mapping(CONFIG_WRITE_OUTSTANDING, FWK_PROP_PREFIX + SMB_WRITE_OUTSTANDING)
+        .mapping(CONFIG_WRITE_OUTSTANDING, PROJ_PROP_PREFIX + SMB_WRITE_OUTSTANDING)
+        .mapping(CONFIG_FANOUT_THREADS, FWK_PROP_PREFIX + SMB_FANOUT_THREADS)
+        .mapping(CONFIG_FANOUT_THREADS, PROJ_PROP_PREFIX + SMB_FANOUT_THREADS)
+        .mapping(CONFIG_DIRECTORY_CACHE_TTL, FWK_PROP_PREFIX + SMB_DIRECTORY_CACHE_TTL)
+        .mapping(CONFIG_DIRECTORY_CACHE_TTL, PROJ_PROP_PREFIX + SMB_DIRECTORY_CACHE_TTL)
+        .mapping(CONFIG_SYNC_MODE, FWK_PROP_PREFIX + SMB_SYNC_MODE)
+        .mapping(CONFIG_SYNC_MODE, PROJ_PROP_PREFIX + SMB_SYNC_MODE)
+        .mapping(CONFIG_CREDENTIAL_CACHE_TTL, FWK_PROP_PREFIX + SMB_CREDENTIAL_CACHE_TTL)
+        .mapping(CONFIG_CREDENTIAL_CACHE_TTL, PROJ_PROP_PREFIX + SMB_CREDENTIAL_CACHE_TTL)
+        .mapping(CONFIG_DIRECTORY_STREAMS, FWK_PROP_PREFIX + SMB_DIRECTORY_STREAMS)
+        .mapping(CONFIG_DIRECTORY_STREAMS, PROJ_PROP_PREFIX + SMB_DIRECTORY_STREAMS)
+        .mapping(CONFIG_READ_BUFFER_SIZE, FWK_PROP_PREFIX + SMB_READ_BUFFER_SIZE)
+        .mapping(CONFIG_READ_BUFFER_SIZE, PROJ_PROP_PREFIX + SMB_READ_BUFFER_SIZE)
+        .mapping(CONFIG_WRITE_BUFFER_SIZE, FWK_PROP_PREFIX + SMB_WRITE_BUFFER_SIZE)
+        .mapping(CONFIG_WRITE_BUFFER_SIZE, PROJ_PROP_PREFIX + SMB_WRITE_BUFFER_SIZE)
+        .mapping(CONFIG_TRANSACT_BUFFER_SIZE, FWK_PROP_PREFIX + SMB_TRANSACT_BUFFER_SIZE)
+        .mapping(CONFIG_TRANSACT_BUFFER_SIZE, PROJ_PROP_PREFIX + SMB_TRANSACT_BUFFER_SIZE)
+        .mapping(CONFIG_TIMEOUT, FWK_PROP_PREFIX + SMB_TIMEOUT)
+        .mapping(CONFIG_TIMEOUT, PROJ_PROP_PREFIX + SMB_TIMEOUT)
+        .mapping(CONFIG_SOCKET_TIMEOUT, FWK_PROP_PREFIX + SMB_SOCKET_TIMEOUT)
+        .mapping(CONFIG_SOCKET_TIMEOUT, PROJ_PROP_PREFIX + SMB_SOCKET_TIMEOUT)
+        .mapping(CONFIG_DIALECTS, FWK_PROP_PREFIX + SMB_DIALECTS)
+        .mapping(CONFIG_DIALECTS, PROJ_PROP_PREFIX + SMB_DIALECTS)
+        .mapping(CONFIG_SIGNING_REQUIRED, FWK_PROP_PREFIX + SMB_SIGNING_REQUIRED)
+        .mapping(CONFIG_SIGNING_REQUIRED, PROJ_PROP_PREFIX + SMB_SIGNING_REQUIRED)
+        .mapping(CONFIG_BANDWIDTH_LIMIT, FWK_PROP_PREFIX + SMB_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_BANDWIDTH_LIMIT, PROJ_PROP_PREFIX + SMB_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_SITE_BANDWIDTH_LIMIT, FWK_PROP_PREFIX + SMB_SITE_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_SITE_BANDWIDTH_LIMIT, PROJ_PROP_PREFIX + SMB_SITE_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_HOST_BANDWIDTH_LIMIT, FWK_PROP_PREFIX + SMB_HOST_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_HOST_BANDWIDTH_LIMIT, PROJ_PROP_PREFIX + SMB_HOST_BANDWIDTH_LIMIT)
+        .mapping(CONFIG_MAX_TRANSFERS, FWK_PROP_PREFIX + SMB_MAX_TRANSFERS)
+        .mapping(CONFIG_MAX_TRANSFERS, PROJ_PROP_PREFIX + SMB_MAX_TRANSFERS)
+        .mapping(CONFIG_VERIFY, FWK_PROP_PREFIX + SMB_VERIFY)
+        .mapping(CONFIG_VERIFY, PROJ_PROP_PREFIX + SMB_VERIFY)
+        .mapping(CONFIG_SHARE_MAP, FWK_PROP_PREFIX + SMB_SHARE_MAP)
+        .mapping(CONFIG_SHARE_MAP, PROJ_PROP_PREFIX + SMB_SHARE_MAP)
+        .mapping(CONFIG_PREWARM, FWK_PROP_PREFIX + SMB_PREWARM)
+        .mapping(CONFIG_PREWARM, PROJ_PROP_PREFIX + SMB_PREWARM)
         .build();
 
 
@@ -120,10 +356,13 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
 
     public static enum Reason implements FailureReason {
         CopyFileFailed,
+        HostUnavailable,
     }
 
 
     private Framework framework;
+    // The project of the latest copy, for getFrameworkProject() only: one copier serves concurrent copies of
+    // different projects, so the copies pass their own project along instead
     private String frameworkProject;
 
     
@@ -144,7 +383,7 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
         }
     }
 
-    private static int resolveIntProperty( 
+    static int resolveIntProperty( 
             final String attribute, 
             final int defaultValue, 
             final INodeEntry iNodeEntry, 
@@ -163,13 +402,25 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
         } 
         return value; 
     } 
+
+    static boolean resolveBooleanProperty(
+            final String attribute,
+            final boolean defaultValue,
+            final INodeEntry iNodeEntry,
+            final String frameworkProject,
+            final Framework framework
+    )
+    {
+        final String string = resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework);
+        return null != string ? Boolean.parseBoolean(string.trim()) : defaultValue;
+    }
     
     /**
      * Resolve a node/project/framework property by first checking node attributes named X, then project properties
      * named "project.X", then framework properties named "framework.X". If none of those exist, return the default
-     * value
+     * value. Node attributes are skipped when no node is given.
      */
-    private static String resolveProperty(
+    static String resolveProperty(
             final String nodeAttribute,
             final String defaultValue,
             final INodeEntry node,
@@ -177,7 +428,7 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
             final Framework framework
     )
     {
-        if (null != node.getAttributes().get(nodeAttribute)) {
+        if (null != node && null != node.getAttributes().get(nodeAttribute)) {
             return node.getAttributes().get(nodeAttribute);
         } else if (
                 framework.hasProjectProperty(PROJ_PROP_PREFIX + nodeAttribute, frameworkProject)
@@ -224,66 +475,107 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
 
     private String copyFile(final ExecutionContext context, final File scriptfile, final InputStream input,
                             final String script, final INodeEntry node) throws FileCopierException {
-        return copyFile(context, scriptfile, input, script, node, null);
+        return copyFile(context, context.getFrameworkProject(), scriptfile, input, script, node, null);
 
     }
 
-    private String getUsername(final INodeEntry node) {
-        final String user;
-        if (null != nonBlank(node.getUsername()) || node.containsUserName()) {
-            user = nonBlank(node.getUsername());
+    /**
+     * The credential cache TTL in milliseconds, from the project or framework properties.
+     */
+    private long getCredentialCacheTtl(final String project) throws ConfigurationException {
+        return resolveIntProperty(SMB_CREDENTIAL_CACHE_TTL, DEFAULT_SMB_CREDENTIAL_CACHE_TTL, null,
+                project, getFramework()) * 1000L;
+    }
 
-        } else {
-            System.err.println("get smb-user");
-            user = resolveProperty(SMB_USER, null, node, getFrameworkProject(), getFramework());
+    /**
+     * Resolve the settings of the node, or reuse those resolved for an earlier copy to it while the node
+     * attributes are unchanged. The settings classes don't depend on Rundeck, they reject an invalid value with
+     * an IllegalArgumentException, which is reported here as a configuration error.
+     *
+     * @param project the project of the execution, passed along rather than read from this shared copier, which
+     *                may be copying for another project at the same time
+     */
+    private SmbNodeSettings getNodeSettings(final INodeEntry node, final String project)
+            throws ConfigurationException
+    {
+        final SmbCredentialCache cache = SmbCredentialCache.getInstance();
+        SmbNodeSettings settings = cache.getNodeSettings(project, node.getNodename(), node.getAttributes());
+        if (null == settings) {
+            try {
+                settings = SmbNodeSettings.resolve(node, project, getFramework());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Invalid SMB settings for node " + node.getNodename() + ": "
+                        + e.getMessage());
+            }
+            cache.putNodeSettings(project, node.getNodename(), node.getAttributes(), settings,
+                    getCredentialCacheTtl(project));
+        }
+        return settings;
+    }
+
+    /**
+     * @return the storage path of the password with data context references replaced, or null if none is set
+     */
+    private String getPasswordStoragePath(final ExecutionContext context, final SmbNodeSettings settings) {
+        String storagePath = settings.getPasswordStoragePath();
+        if (null != storagePath && storagePath.contains("${")) {
+            storagePath = DataContextUtils.replaceDataReferences(
+                    storagePath,
+                    context.getDataContext()
+            );
         }
+        return storagePath;
+    }
 
-        //if (null != user && user.contains("${")) {
-        //    return DataContextUtils.replaceDataReferences(user, getContext().getDataContext());
-        //}
-        return user;
+    /**
+     * Read the password from key storage, which checks that the user of the execution may read it, and cache it for
+     * that user.
+     */
+    private char[] readPassword(final ExecutionContext context, final String project, final String storagePath)
+            throws ConfigurationException
+    {
+        Path path = PathUtil.asPath(storagePath);
+        SecretOutputStream secret = new SecretOutputStream();
+        try {
+            ResourceMeta contents = context.getStorageTree().getResource(path)
+                    .getContents();
+            contents.writeContent(secret);
+            char[] password = secret.toChars();
+            SmbCredentialCache.getInstance().putSecret(project, context.getUser(), storagePath, password,
+                    getCredentialCacheTtl(project));
+            return password;
+        } catch (StorageException e) {
+            throw new ConfigurationException("Failed to read the SMB password for " +
+                    "storage path: " + storagePath + ": " + e.getMessage());
+        } catch (IOException e) {
+            throw new ConfigurationException("Failed to read the SMB password for " +
+                    "storage path: " + storagePath + ": " + e.getMessage());
+        } finally {
+            secret.clear();
+        }
     }
-    
-    private String getPassword(final ExecutionContext context, final INodeEntry node)  throws ConfigurationException{
-        //look for storage option
-    	
-        String storagePath = resolveProperty(SMB_PASSWORD_STORAGE_PATH, null,
-                node, getFrameworkProject(), getFramework());
-        if(null!=storagePath){
-            //look up storage value
-            if (storagePath.contains("${")) {
-                storagePath = DataContextUtils.replaceDataReferences(
-                        storagePath,
-                        context.getDataContext()
-                );
-            }
-            Path path = PathUtil.asPath(storagePath);
-            
-            try {
-                ResourceMeta contents = context.getStorageTree().getResource(path)
-                        .getContents();
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                contents.writeContent(byteArrayOutputStream);
-                return new String(byteArrayOutputStream.toByteArray());
-            } catch (StorageException e) {
-                throw new ConfigurationException("Failed to read the SMB password for " +
-                        "storage path: " + storagePath + ": " + e.getMessage());
-            } catch (IOException e) {
-                throw new ConfigurationException("Failed to read the SMB password for " +
-                        "storage path: " + storagePath + ": " + e.getMessage());
-            }
+
+    /**
+     * Buffers a password read from key storage so that it can be decoded without a String and zeroed after.
+     */
+    private static class SecretOutputStream extends ByteArrayOutputStream {
+        synchronized char[] toChars() {
+            CharBuffer chars = Charset.defaultCharset().decode(ByteBuffer.wrap(buf, 0, count));
+            char[] value = Arrays.copyOfRange(chars.array(), chars.position(), chars.limit());
+            Arrays.fill(chars.array(), '\0');
+            return value;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(buf, (byte) 0);
+            reset();
         }
-        //else look up option value
-       // final String passwordOption = resolveProperty(WINRM_PASSWORD_OPTION,
-       //         DEFAULT_WINRM_PASSWORD_OPTION, getNode(),
-       //         getFrameworkProject(), getFramework());
-       // return evaluateSecureOption(passwordOption, getContext());
-        return null;
     }
 
 
     private String copyFile(
             final ExecutionContext context,
+            final String project,
             final File scriptfile,
             final InputStream input,
             final String script,
@@ -293,207 +585,791 @@ public class SmbFileCopier extends BaseFileCopier implements FileCopier, Describ
 
         //Project project = new Project();
 
-        final String remotefile;
+        final String remotefile = remoteFilepath(node, scriptfile, destinationPath);
+        if(null != scriptfile && scriptfile.isDirectory()) {
+            // Rundeck has no directory copy method of its own, it hands a directory to copyFile
+            copyDirectory(context, project, scriptfile, node, remotefile);
+            return remotefile;
+        }
+
+        frameworkProject = project;
+        final boolean streamingUpload;
+        try {
+            streamingUpload = getNodeSettings(node, project).isStreamingUpload();
+        } catch (ConfigurationException e) {
+            throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+        }
+
+        // Stream the input file, script or stream straight to the share, or write a local temp file for the 
+        // stream if streaming is disabled. Script content is shared by all nodes the execution copies it to.
+        final SmbPayload payload;
+        if(null != scriptfile) {
+            payload = SmbPayload.forFile(scriptfile, false);
+        }
+        else if(null != script) {
+            payload = SmbScriptCache.getInstance().payload(getExecutionId(context), script);
+        }
+        else if(!streamingUpload) {
+            payload = SmbPayload.forFile(writeTempFile(context, scriptfile, input, script), true);
+        }
+        else {
+            payload = SmbPayload.forStream(input);
+        }
+        try {
+            copyPayload(context, project, payload, node, remotefile);
+        }
+        finally {
+            releasePayload(context, payload);
+        }
+        return remotefile;
+    }
+
+    /**
+     * @return the id of the running execution, or null if the data context has none
+     */
+    private static String getExecutionId(final ExecutionContext context) {
+        final Map<String, Map<String, String>> dataContext = context.getDataContext();
+        final Map<String, String> job = null != dataContext ? dataContext.get("job") : null;
+        return null != job ? nonBlank(job.get("execid")) : null;
+    }
+
+    /**
+     * On the first copy of an execution, start opening sessions to the other nodes it targets, when enabled.
+     */
+    private void startPrewarm(final ExecutionContext context, final String project, final INodeEntry current) {
+        final String executionId = getExecutionId(context);
+        final INodeSet nodes = context.getNodes();
+        if (null == executionId || null == nodes || nodes.getNodes().size() < 2) {
+            return;
+        }
+        final int threads;
+        try {
+            if (!resolveBooleanProperty(SMB_PREWARM, DEFAULT_SMB_PREWARM, null, project, getFramework())) {
+                return;
+            }
+            threads = resolveIntProperty(SMB_FANOUT_THREADS, DEFAULT_SMB_FANOUT_THREADS, null, project,
+                    getFramework());
+        } catch (ConfigurationException e) {
+            return;
+        }
+        if (!SmbPrewarm.getInstance().begin(executionId)) {
+            return;
+        }
+        final List<Runnable> prewarms = new ArrayList<Runnable>();
+        for (final INodeEntry node : nodes.getNodes()) {
+            if (!node.getNodename().equals(current.getNodename()) && isSmbNode(node, project)) {
+                prewarms.add(new Runnable() {
+                    public void run() {
+                        prewarm(context, project, node);
+                    }
+                });
+            }
+        }
+        context.getExecutionListener().log(3, "Pre-warming SMB sessions to " + prewarms.size() + " nodes.");
+        SmbPrewarm.getInstance().start(prewarms, threads);
+    }
+
+    /**
+     * @return true if files are copied to the node by this plugin, by node attribute or project default
+     */
+    private boolean isSmbNode(final INodeEntry node, final String project) {
+        String copier = node.getAttributes().get("file-copier");
+        if (null == copier && getFramework().hasProjectProperty("service.FileCopier.default.provider", project)) {
+            copier = getFramework().getProjectProperty(project, "service.FileCopier.default.provider");
+        }
+        return SERVICE_PROVIDER_TYPE.equals(copier);
+    }
+
+    /**
+     * Open an authenticated session to the node, connect the share of its default destination and leave the
+     * session idle in the pool. Failures are only logged, the copy to the node will report them.
+     */
+    private void prewarm(final ExecutionContext context, final String project, final INodeEntry node) {
+        final String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.getNodename() + "] ";
+        final SmbConnectionPool pool = SmbConnectionPool.getInstance();
+        SmbConnectionPool.PooledSession pooled = null;
+        char[] password = null;
+        try {
+            final SmbNodeSettings settings = getNodeSettings(node, project);
+            final String storagePath = getPasswordStoragePath(context, settings);
+            if (null == storagePath || settings.getPoolIdleTimeout() <= 0) {
+                return;
+            }
+            password = SmbCredentialCache.getInstance().getSecret(project, context.getUser(), storagePath);
+            if (null == password) {
+                password = readPassword(context, project, storagePath);
+            }
+            final SmbRemotePath remotePath = settings.getPathResolver().resolve(
+                    generateRemoteFilepathForNode(node, "dispatch-script"));
+            final String hostname = null != remotePath.getServer() ? remotePath.getServer() : node.getHostname();
+            final long start = System.nanoTime();
+            // Not recorded in the host totals, the time is taken off the copies instead
+            pooled = pool.acquire(hostname, settings.getDomain(), settings.getUsername(), password,
+                    settings.getClientSettings(), settings.getPoolMaxPerHost(), settings.getPoolIdleTimeout(),
+                    new SmbCopyMetrics(hostname));
+            pooled.connectShare(remotePath.getShareName());
+            pool.release(pooled, settings.getPoolIdleTimeout());
+            pooled = null;
+            context.getExecutionListener().log(3, logprompt + "Pre-warmed SMB session in " 
+                    + ((System.nanoTime() - start) / 1000000) + " ms.");
+        } catch (Exception e) {
+            context.getExecutionListener().log(3, logprompt + "SMB session pre-warm failed: " + e.getMessage());
+        } finally {
+            if (null != pooled) {
+                pool.invalidate(pooled);
+            }
+            if (null != password) {
+                Arrays.fill(password, '\0');
+            }
+        }
+    }
+
+    private String remoteFilepath(final INodeEntry node, final File scriptfile, final String destinationPath) {
         if(null==destinationPath) {
-            remotefile = generateRemoteFilepathForNode(node, (null != scriptfile ? scriptfile.getName()
+            return generateRemoteFilepathForNode(node, (null != scriptfile ? scriptfile.getName()
                     : "dispatch-script"));
         }else {
-            remotefile = destinationPath;
-        }
-        //write to a local temp file or use the input file
-        final File localTempfile =
-                null != scriptfile ?
-                        scriptfile :
-                        writeTempFile(
-                                context,
-                                scriptfile,
-                                input,
-                                script
-                        );
-
-        
-        
-        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.getNodename() + "] ";
-        
-        String username;
-        String domain = null;
-        username = getUsername(node);
-        if(username.contains("\\")) {
-        	domain = username.split("\\")[0];
-        	username = username.split("\\")[1];
-        }
-        else if(username.contains("@")) {
-        	domain = username.split("@")[1];        	
-        	username = username.split("@")[0];
+            return destinationPath;
         }
+    }
 
-        
-        String password = null;
-        
-        frameworkProject = context.getFrameworkProject();
-        try{
-        password = getPassword(context, node);
-        }catch(ConfigurationException E){
-            System.err.println("ouch");        	
+    private void releasePayload(final ExecutionContext context, final SmbPayload payload) {
+        if (!payload.release()) {
+            context.getExecutionListener().log(Constants.WARN_LEVEL,
+                    "Unable to remove local temp file: " + payload.getDescription());
         }
+    }
 
-        int retryMax = 0;
-        int retryDelay = 0;
+    private void copyPayload(
+            final ExecutionContext context,
+            final String project,
+            final SmbPayload payload,
+            final INodeEntry node,
+            final String remotefile
+    ) throws FileCopierException {
+        copy(context, project, node, remotefile, new PayloadTransfer(context, payload, remotefile));
+    }
+
+    /**
+     * Run the transfer against the share of the remote path on the node, retrying it on transport errors.
+     *
+     * @param project the project of the execution, taken from the context by the thread that started the copy
+     */
+    private void copy(
+            final ExecutionContext context,
+            final String project,
+            final INodeEntry node,
+            final String remotefile,
+            final ShareTransfer transfer
+    ) throws FileCopierException {
+        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.getNodename() + "] ";
+        startPrewarm(context, project, node);
+        
+        final SmbNodeSettings settings;
+        final SmbRemotePath remotePath;
+        final String storagePath;
+        char[] password = null;
+        boolean cachedPassword = false;
         try {
-        	retryMax = resolveIntProperty(SMB_RETRY_MAX, DEFAULT_SMB_RETRY_MAX, node, 
-                getFrameworkProject(), getFramework()); 
-        	retryDelay = resolveIntProperty(SMB_RETRY_DELAY, DEFAULT_SMB_RETRY_DELAY, node, 
-                getFrameworkProject(), getFramework()); 
+            settings = getNodeSettings(node, project);
+            remotePath = settings.getPathResolver().resolve(remotefile);
+            storagePath = getPasswordStoragePath(context, settings);
+            if(null == storagePath) {
+                throw new ConfigurationException("No SMB password storage path configured for node " 
+                        + node.getNodename());
+            }
+            password = SmbCredentialCache.getInstance().getSecret(project, context.getUser(), storagePath);
+            cachedPassword = null != password;
+            if(!cachedPassword) {
+                password = readPassword(context, project, storagePath);
+            }
         }
-        catch(Exception e) {
+        catch(ConfigurationException | IllegalArgumentException e) {
         	throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
         }
+        final String domain = settings.getDomain();
+        final String username = settings.getUsername();
+        final int retryMax = settings.getRetryMax();
+        final int poolMaxPerHost = settings.getPoolMaxPerHost();
+        final long poolIdleTimeout = settings.getPoolIdleTimeout();
+
         /**
          * Copy the file over
          */
-        context.getExecutionListener().log(3,"copying file: '" + localTempfile.getAbsolutePath()
+        context.getExecutionListener().log(3,"copying " + transfer.getDescription()
                 + "' to: '" + node.getNodename() + ":" + remotefile + "'");
 
-        // Parse the remote file path
-        String shareName = null;
-        String path = "";
-        for(int i=0;i<remotefile.split("\\\\").length;i++) {
-        	String element = remotefile.split("\\\\")[i];
-        	if(i==0) {
-        		// First element of path is a Windows drive letter
-        		if(element.length() != 2) {
-        			throw new IllegalArgumentException("Invalid path root length."); 
-        		}
-        		if(!element.endsWith(":")) {
-        			throw new IllegalArgumentException("Invalid path syntax."); 
-        		}
-        		char c = element.charAt(0);
-        		if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')){
-        			throw new IllegalArgumentException("Invalid path drive letter.");         			
-        		}
-        		shareName = Character.toString(c) + "$";
-        	}
-        	else if(i!=(remotefile.split("\\\\").length-1)) {
-        		// Successive elements of path are directories
-        		path += element + "\\";
-        	}
-        	else {
-        		// Last element of path is the filename
-        		path += element;
-        	}
-        		
-        }
+        // A UNC path names the server holding the share, other paths are on the node itself
+        final String hostname = null != remotePath.getServer() ? remotePath.getServer() : node.getHostname();
+        final String shareName = remotePath.getShareName();
 
         
         
-        SMBClient client = new SMBClient();
-        Connection connection = null;
-        Session session = null;
+        SmbConnectionPool pool = SmbConnectionPool.getInstance();
+        SmbCircuitBreaker breaker = SmbCircuitBreaker.getInstance();
+        SmbTransferScheduler scheduler = SmbTransferScheduler.getInstance();
+        final String executionId = getExecutionId(context);
+        SmbCopyMetrics metrics = new SmbCopyMetrics(hostname);
+        try {
         for(int retry=0;retry<=retryMax;retry++) {        
+        if(!breaker.allow(hostname, settings.getCircuitBreakerCooldown())) {
+            finishMetrics(context, logprompt, metrics, true);
+            throw new FileCopierException("SMB file copy failed: host " + hostname + " is unavailable " 
+                    + "after repeated transport errors, it is probed again in " 
+                    + (breaker.getRetryAfter(hostname) / 1000) + " seconds.", Reason.HostUnavailable);
+        }
+        SmbConnectionPool.PooledSession pooled = null;
+        SmbTransferScheduler.Ticket ticket = null;
         try {
-        	connection = client.connect(node.getHostname());
-        	ConnectionInfo info = connection.getConnectionInfo();
-            context.getExecutionListener().log(3,logprompt + "ConnectionInfo.ServerName = " + info.getServerName());
-            context.getExecutionListener().log(3,logprompt + "ConnectionInfo.NegotiatedProtocol = " + info.getNegotiatedProtocol().getDialect().toString());
-        	
-            AuthenticationContext ac = new AuthenticationContext(username, password.toCharArray(), domain);
-            session = connection.authenticate(ac);
-
-            // Connect to Share
-       		DiskShare share = null;
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // Wait for a transfer slot before taking a session, so that queued copies don't hold on to one
+            long start = SmbCopyMetrics.start();
+            ticket = scheduler.admit(executionId, hostname, settings.getSite(), 
+                    settings.getMaxTransfers(), settings.getBandwidthLimit(), settings.getSiteBandwidthLimit(), 
+                    settings.getHostBandwidthLimit());
+            metrics.stop(SmbCopyMetrics.Phase.QUEUE, start);
             try {
-            	share = (DiskShare) session.connectShare(shareName);
-
-            	// Parse the remote path and create missing directories
-            	String testPath = "";
-                for(int i=0;i<path.split("\\\\").length-1;i++) {
-                	String element = path.split("\\\\")[i];
-               		testPath += element;
-               		if(!share.folderExists(testPath)) {
-               			// Directory does not exist, create
-               			share.mkdir(testPath);
-               		}
-               		testPath += "\\";                		                	
+                pooled = pool.acquire(hostname, domain, username, password,
+                        settings.getClientSettings(), poolMaxPerHost, poolIdleTimeout, metrics);
+            }
+            catch(SMBApiException e) {
+                if(e.getStatus() != NtStatus.STATUS_LOGON_FAILURE) {
+                    throw e;
                 }
-
-            	SmbFiles.copy(localTempfile, share, path, true);
-                // We completed without any exceptions, make sure we don't repeat  
-                retry=retryMax;
-
+                // The password may have been changed in key storage since it was cached
+                SmbCredentialCache.getInstance().invalidateSecret(project, context.getUser(), storagePath);
+                if(!cachedPassword) {
+                    throw e;
+                }
+                context.getExecutionListener().log(3,logprompt + "SMB logon failed with cached password, " 
+                        + "reading it again from key storage.");
+                Arrays.fill(password, '\0');
+                password = readPassword(context, project, storagePath);
+                cachedPassword = false;
+                pooled = pool.acquire(hostname, domain, username, password,
+                        settings.getClientSettings(), poolMaxPerHost, poolIdleTimeout, metrics);
             }
-            catch(Exception e) {
-            	throw e;
+            metrics.setReused(pooled.isReused());
+            if(pooled.isReused()) {
+                context.getExecutionListener().log(3,logprompt + "Reusing pooled SMB session.");
             }
-            finally {
-        		try {
-					share.close();
-				} catch (IOException e) {
-				}
+            else {
+                ConnectionInfo info = pooled.getConnection().getConnectionInfo();
+                context.getExecutionListener().log(3,logprompt + "ConnectionInfo.ServerName = " + info.getServerName());
+                context.getExecutionListener().log(3,logprompt + "ConnectionInfo.NegotiatedProtocol = " + info.getNegotiatedProtocol().getDialect().toString());
             }
 
+            // Connect to Share, reusing the tree connect of a pooled session
+            start = SmbCopyMetrics.start();
+            DiskShare share = pooled.connectShare(shareName);
+            metrics.stop(SmbCopyMetrics.Phase.SHARE_CONNECT, start);
+
+            transfer.transfer(share, hostname, remotePath, settings, ticket, metrics, logprompt);
+            // We completed without any exceptions, make sure we don't repeat  
+            retry=retryMax;
+            breaker.succeeded(hostname);
+
+            pool.release(pooled, poolIdleTimeout);
+            pooled = null;
         }   
-        catch(com.hierynomus.protocol.transport.TransportException | java.net.SocketTimeoutException | java.net.ConnectException e) {
+        catch(InterruptedException e) {
+            // The job was aborted, give the thread back right away
+            throw interrupted(context, logprompt, metrics, e);
+        }
+        catch(SMBApiException e) {
+            if(null != pooled && pooled.isReused() && SmbConnectionPool.isSessionExpired(e) 
+                    && transfer.isReplayable()) {
+                // The server has dropped the pooled session: authenticate a new one, without using up a retry
+                context.getExecutionListener().log(3,logprompt + "Pooled SMB session has expired, " 
+                        + "authenticating a new one.");
+                pool.invalidate(pooled);
+                pooled = null;
+                retry--;
+                continue;
+            }
+            // The host answered, so it is reachable
+            breaker.succeeded(hostname);
+            finishMetrics(context, logprompt, metrics, true);
+            throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+        }
+        catch(Exception e) {
+            if(SmbCircuitBreaker.isInterruption(e)) {
+                // smbj reports an interrupted wait for a response as a transport error
+                throw interrupted(context, logprompt, metrics, e);
+            }
+            if(!SmbCircuitBreaker.isTransportFailure(e)) {
+                finishMetrics(context, logprompt, metrics, true);
+                throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+            }
+            final boolean open = breaker.failed(hostname, settings.getCircuitBreakerThreshold(), 
+                    settings.getCircuitBreakerCooldown());
         	// Retry operation
-        	if(retry==retryMax) {
-                throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);        	        	        		
+        	if(retry==retryMax || !transfer.isReplayable() || open) {
+        		// A partly consumed input stream can't be sent again
+                finishMetrics(context, logprompt, metrics, true);
+                throw new FileCopierException("SMB file copy failed.", open ? Reason.HostUnavailable 
+                        : Reason.CopyFileFailed, e);
         	}
         	else {
-                context.getExecutionListener().log(Constants.WARN_LEVEL,logprompt + "Retrying SMB file copy.");
+                final long delay = SmbBackoff.delay(retry, settings.getRetryDelay() * 1000L, 
+                        settings.getRetryBackoffMultiplier(), settings.getRetryMaxDelay() * 1000L);
+                context.getExecutionListener().log(Constants.WARN_LEVEL,logprompt + "Retrying SMB file copy in " 
+                        + delay + " ms, " + transfer.getAcknowledged() + " bytes already written.");
+                metrics.retried();
         		try {
-					Thread.sleep(retryDelay * 1000);
+					Thread.sleep(delay);
 				} catch (InterruptedException e1) {
+                    throw interrupted(context, logprompt, metrics, e1);
 				}
         	}
-        		
-        }
-        
-        catch(Exception e) {
-            throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);        	
         }
         finally {
-        	if(session != null) {
-        		try {
-					session.close();
-				} catch (IOException e) {
-				}
-        	}        	
-        	if(connection != null) {
-        		try {
-					connection.close();
-				} catch (IOException e) {
-				}
+        	// A session that failed mid-copy is not returned to the pool
+        	if(pooled != null) {
+        		pool.invalidate(pooled);
         	}        	
+            // The slot is given up between attempts, so that the backoff delay doesn't hold it
+            if(ticket != null) {
+                scheduler.release(ticket);
+            }
         }
         
         }
-              
-        
-        if (!localTempfile.delete()) {
-            context.getExecutionListener().log(Constants.WARN_LEVEL,
-                    "Unable to remove local temp file: " + localTempfile.getAbsolutePath());
+        finishMetrics(context, logprompt, metrics, false);
+        }
+        finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    private FileCopierException interrupted(
+            final ExecutionContext context,
+            final String logprompt,
+            final SmbCopyMetrics metrics,
+            final Exception e
+    ) {
+        Thread.currentThread().interrupt();
+        finishMetrics(context, logprompt, metrics, true);
+        return new FileCopierException("SMB file copy interrupted.", StepFailureReason.Interrupted, e);
+    }
+
+    /**
+     * Add the metrics of a finished copy to the host totals and log them as a single summary line.
+     */
+    private void finishMetrics(
+            final ExecutionContext context,
+            final String logprompt,
+            final SmbCopyMetrics metrics,
+            final boolean failed
+    ) {
+        metrics.finish(failed);
+        context.getExecutionListener().log(3, logprompt + metrics.summary());
+    }
+
+    /**
+     * The part of a copy that runs on the connected share. It is run again on the next session when an attempt
+     * fails with a transport error.
+     */
+    private interface ShareTransfer {
+        String getDescription();
+
+        /**
+         * @return true if the transfer can be run again after a failed attempt
+         */
+        boolean isReplayable();
+
+        /**
+         * @return the number of bytes acknowledged by the server that a retry does not need to send again
+         */
+        long getAcknowledged();
+
+        void transfer(
+                DiskShare share,
+                String hostname,
+                SmbRemotePath remotePath,
+                SmbNodeSettings settings,
+                SmbTransferScheduler.Ticket ticket,
+                SmbCopyMetrics metrics,
+                String logprompt
+        ) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Uploads a single payload to the remote file.
+     */
+    private class PayloadTransfer implements ShareTransfer {
+        private final ExecutionContext context;
+        private final SmbPayload payload;
+        private final String remotefile;
+        // One uploader for all attempts, so that a retry can resume where the last attempt got to
+        private SmbUploader uploader;
+
+        PayloadTransfer(
+                final ExecutionContext context,
+                final SmbPayload payload,
+                final String remotefile
+        ) {
+            this.context = context;
+            this.payload = payload;
+            this.remotefile = remotefile;
+        }
+
+        public String getDescription() {
+            return "file: '" + payload.getDescription() + "'";
+        }
+
+        public boolean isReplayable() {
+            return payload.isReplayable();
+        }
+
+        public long getAcknowledged() {
+            return null != uploader ? uploader.getAcknowledged() : 0;
+        }
+
+        public void transfer(
+                final DiskShare share,
+                final String hostname,
+                final SmbRemotePath remotePath,
+                final SmbNodeSettings settings,
+                final SmbTransferScheduler.Ticket ticket,
+                final SmbCopyMetrics metrics,
+                final String logprompt
+        ) throws IOException, InterruptedException {
+            final String shareName = remotePath.getShareName();
+            final String path = remotePath.getPath();
+            final String directory = remotePath.getDirectory();
+            if(null == uploader) {
+                uploader = new SmbUploader(settings.getUploadBufferSize(), settings.getWriteOutstanding(),
+                        settings.isVerify());
+            }
+
+            SmbSync sync = new SmbSync(settings.getSyncMode(), payload);
+            if(sync.isCurrent(share, path)) {
+                context.getExecutionListener().log(Constants.INFO_LEVEL,logprompt + "Skipped copy of '" 
+                        + payload.getDescription() + "': remote file '" + remotefile + "' is current, " 
+                        + payload.length() + " bytes not transferred.");
+                metrics.setSkipped(true);
+                return;
+            }
+            // Create missing directories, skipping those already known to exist
+            SmbDirectoryCache directories = SmbDirectoryCache.getInstance();
+            long start = SmbCopyMetrics.start();
+            directories.mkdirs(share, hostname, shareName, directory, settings.getDirectoryCacheTtl());
+            metrics.stop(SmbCopyMetrics.Phase.MKDIR, start);
+
+            start = SmbCopyMetrics.start();
+            try {
+                metrics.addBytes(uploader.upload(share, path, payload, ticket));
+            }
+            catch(SMBApiException e) {
+                if(e.getStatus() != NtStatus.STATUS_OBJECT_PATH_NOT_FOUND || !payload.isReplayable()) {
+                    throw e;
+                }
+                // A cached directory was removed on the remote host since, create it again
+                directories.invalidate(hostname, shareName, directory);
+                directories.mkdirs(share, hostname, shareName, directory, settings.getDirectoryCacheTtl());
+                metrics.addBytes(uploader.upload(share, path, payload, ticket));
+            }
+            finally {
+                metrics.stop(SmbCopyMetrics.Phase.TRANSFER, start);
+            }
+            if(uploader.getResumedFrom() > 0) {
+                context.getExecutionListener().log(3,logprompt + "Resumed SMB file copy at offset " 
+                        + uploader.getResumedFrom() + ".");
+            }
+            if(settings.isVerify()) {
+                start = SmbCopyMetrics.start();
+                final String digest = new SmbVerifier(settings.getUploadBufferSize(), settings.getWriteOutstanding())
+                        .verify(share, path, payload);
+                metrics.stop(SmbCopyMetrics.Phase.VERIFY, start);
+                context.getExecutionListener().log(Constants.INFO_LEVEL,logprompt + "Verified '" + remotefile 
+                        + "': SHA-256 " + digest);
+            }
+            try {
+                sync.uploaded(share, path);
+            }
+            catch(SMBApiException e) {
+                // The share may not support alternate data streams or setting times, the copy itself succeeded
+                context.getExecutionListener().log(Constants.WARN_LEVEL,logprompt 
+                        + "Unable to store the sync state with '" + remotefile + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Uploads a local directory tree into the remote directory.
+     */
+    private class DirectoryTransfer implements ShareTransfer {
+        private final ExecutionContext context;
+        private final File directory;
+        private final SmbDirectoryUpload upload;
+
+        DirectoryTransfer(
+                final ExecutionContext context,
+                final File directory,
+                final SmbDirectoryUpload upload
+        ) {
+            this.context = context;
+            this.directory = directory;
+            this.upload = upload;
+        }
+
+        public String getDescription() {
+            return "directory: '" + directory.getAbsolutePath() + "'";
+        }
+
+        public boolean isReplayable() {
+            return true;
+        }
+
+        public long getAcknowledged() {
+            return upload.getAcknowledged();
+        }
+
+        public void transfer(
+                final DiskShare share,
+                final String hostname,
+                final SmbRemotePath remotePath,
+                final SmbNodeSettings settings,
+                final SmbTransferScheduler.Ticket ticket,
+                final SmbCopyMetrics metrics,
+                final String logprompt
+        ) throws IOException, InterruptedException {
+            final long start = SmbCopyMetrics.start();
+            try {
+                metrics.addBytes(upload.upload(share, hostname, remotePath.getShareName(),
+                        remotePath.getPath(), SmbDirectoryCache.getInstance(), settings.getDirectoryCacheTtl(),
+                        ticket));
+            }
+            finally {
+                metrics.stop(SmbCopyMetrics.Phase.TRANSFER, start);
+            }
+            metrics.setSkipped(upload.getFileCount() > 0 && upload.getSkipped() == upload.getFileCount());
+            context.getExecutionListener().log(3,logprompt + "Copied " + upload.getFileCount() + " files in " 
+                    + (upload.getDirectoryCount() + 1) + " directories, " + upload.getSkipped() 
+                    + " skipped as current" 
+                    + (settings.isVerify() ? ", " + upload.getVerified() + " verified." : "."));
         }
-        return remotefile;
-        
     }
 
     public String copyFileStream(ExecutionContext context, InputStream input, INodeEntry node,
             String destination) throws FileCopierException {
     	context.getExecutionListener().log(Constants.DEBUG_LEVEL,
                 "copyFileStream(ExecutionContext context, InputStream input, INodeEntry node, String destination): " + destination);
-        return copyFile(context, null, input, null, node, destination);
+        return copyFile(context, context.getFrameworkProject(), null, input, null, node, destination);
     }
 
     public String copyFile(ExecutionContext context, File file, INodeEntry node,
             String destination) throws FileCopierException {
     	context.getExecutionListener().log(Constants.DEBUG_LEVEL,
                 "copyFile(ExecutionContext context, File file, INodeEntry node, String destination): " + destination);
-        return copyFile(context, file, null, null, node, destination);
+        return copyFile(context, context.getFrameworkProject(), file, null, null, node, destination);
     }
 
     public String copyScriptContent(ExecutionContext context, String script, INodeEntry node,
             String destination) throws FileCopierException {
     	context.getExecutionListener().log(Constants.DEBUG_LEVEL,
                 "copyScriptContent(ExecutionContext context, String script, INodeEntry node, String destination)" + destination);
-        return copyFile(context, null, null, script, node, destination);
+        return copyFile(context, context.getFrameworkProject(), null, null, script, node, destination);
+    }
+
+    /**
+     * Copy a file to the node without holding the calling thread. The copy runs in the background, on a virtual
+     * thread where the JVM has them, see {@link SmbExecutors}.
+     * <p>
+     * Rundeck itself calls the FileCopier methods, one node per call. This and the other asynchronous methods are
+     * for code that drives the copier directly, such as another plugin. Cancelling the future interrupts the copy.
+     *
+     * @param destination the remote path, or null to generate one
+     *
+     * @return a future completed with the remote path, or exceptionally with the {@link FileCopierException}
+     */
+    public CompletableFuture<String> copyFileAsync(final ExecutionContext context, final File file,
+            final INodeEntry node, final String destination) {
+        final String project = context.getFrameworkProject();
+        return SmbExecutors.submit(SmbExecutors.shared(),
+                () -> copyFile(context, project, file, null, null, node, destination));
+    }
+
+    /**
+     * Copy script content to the node without holding the calling thread.
+     *
+     * @param destination the remote path, or null to generate one
+     *
+     * @return a future completed with the remote path, or exceptionally with the {@link FileCopierException}
+     */
+    public CompletableFuture<String> copyScriptContentAsync(final ExecutionContext context, final String script,
+            final INodeEntry node, final String destination) {
+        final String project = context.getFrameworkProject();
+        return SmbExecutors.submit(SmbExecutors.shared(),
+                () -> copyFile(context, project, null, null, script, node, destination));
+    }
+
+    /**
+     * Copy a stream to the node without holding the calling thread. The stream is read by the background copy, so
+     * it must stay open until the future completes.
+     *
+     * @param destination the remote path, or null to generate one
+     *
+     * @return a future completed with the remote path, or exceptionally with the {@link FileCopierException}
+     */
+    public CompletableFuture<String> copyFileStreamAsync(final ExecutionContext context, final InputStream input,
+            final INodeEntry node, final String destination) {
+        final String project = context.getFrameworkProject();
+        return SmbExecutors.submit(SmbExecutors.shared(),
+                () -> copyFile(context, project, null, input, null, node, destination));
+    }
+
+    /**
+     * Copy a local directory tree to the node over a single SMB session, uploading up to smb-directory-streams
+     * files concurrently. This is also what {@link #copyFile(ExecutionContext, File, INodeEntry, String)} does when
+     * given a directory.
+     *
+     * @param destination the remote directory, or null to generate one
+     *
+     * @return the remote paths of the files copied
+     */
+    public String[] copyDirectory(ExecutionContext context, File directory, INodeEntry node,
+            String destination) throws FileCopierException {
+        context.getExecutionListener().log(Constants.DEBUG_LEVEL,
+                "copyDirectory(ExecutionContext context, File directory, INodeEntry node, String destination): " + destination);
+        return copyDirectory(context, context.getFrameworkProject(), directory, node,
+                remoteFilepath(node, directory, destination));
+    }
+
+    private String[] copyDirectory(
+            final ExecutionContext context,
+            final String project,
+            final File directory,
+            final INodeEntry node,
+            final String remotedir
+    ) throws FileCopierException {
+        frameworkProject = project;
+        final SmbDirectoryUpload upload;
+        try {
+            final SmbNodeSettings settings = getNodeSettings(node, project);
+            upload = new SmbDirectoryUpload(directory, settings.getUploadBufferSize(), settings.getWriteOutstanding(),
+                    settings.getDirectoryStreams(), settings.getSyncMode(), settings.isVerify());
+        } catch (ConfigurationException e) {
+            throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+        } catch (IOException e) {
+            throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+        }
+        copy(context, project, node, remotedir, new DirectoryTransfer(context, directory, upload));
+
+        final List<String> files = upload.getFiles();
+        final String[] remotefiles = new String[files.size()];
+        for (int i = 0; i < remotefiles.length; i++) {
+            remotefiles[i] = remotedir + "\\" + files.get(i);
+        }
+        return remotefiles;
+    }
+
+    /**
+     * Copy a file to many nodes at once. The nodes are copied to concurrently, bounded by smb-fanout-threads
+     * overall and smb-pool-max-per-host per host.
+     * <p>
+     * Not called by Rundeck, whose node dispatcher copies to one node per call; a job gets the per-execution
+     * savings through the session pre-warm and the shared script payload instead. This and the other multi-node
+     * methods are for code that drives the copier directly.
+     *
+     * @param destination the remote path on every node, or null to generate one per node
+     */
+    public SmbMultiNodeCopyResult copyFileToNodes(ExecutionContext context, File file,
+            Collection<INodeEntry> nodes, String destination) throws FileCopierException {
+        return copyToNodes(context, SmbPayload.forFile(file, false), file, nodes, destination);
+    }
+
+    /**
+     * Copy script content to many nodes at once, sharing one in-memory copy of the script.
+     *
+     * @param destination the remote path on every node, or null to generate one per node
+     */
+    public SmbMultiNodeCopyResult copyScriptContentToNodes(ExecutionContext context, String script,
+            Collection<INodeEntry> nodes, String destination) throws FileCopierException {
+        return copyToNodes(context, SmbScriptCache.getInstance().payload(getExecutionId(context), script), null,
+                nodes, destination);
+    }
+
+    /**
+     * Copy a stream to many nodes at once. The stream is read once, into a local temp file shared by all nodes.
+     *
+     * @param destination the remote path on every node, or null to generate one per node
+     */
+    public SmbMultiNodeCopyResult copyFileStreamToNodes(ExecutionContext context, InputStream input,
+            Collection<INodeEntry> nodes, String destination) throws FileCopierException {
+        return copyToNodes(context, SmbPayload.forFile(writeTempFile(context, null, input, null), true), null,
+                nodes, destination);
+    }
+
+    private SmbMultiNodeCopyResult copyToNodes(
+            final ExecutionContext context,
+            final SmbPayload payload,
+            final File scriptfile,
+            final Collection<INodeEntry> nodes,
+            final String destination
+    ) throws FileCopierException {
+        final String project = context.getFrameworkProject();
+        frameworkProject = project;
+        SmbCredentialCache.getInstance().evictExpired();
+        ExecutorService executor = null;
+        try {
+            final int threads;
+            try {
+                threads = resolveIntProperty(SMB_FANOUT_THREADS, DEFAULT_SMB_FANOUT_THREADS, null, project,
+                        getFramework());
+            } catch (ConfigurationException e) {
+                throw new FileCopierException("SMB file copy failed.", Reason.CopyFileFailed, e);
+            }
+            executor = SmbExecutors.newExecutor("smb-fanout", Math.min(threads, nodes.size()));
+
+            final Map<String, Future<String>> copies = new LinkedHashMap<String, Future<String>>();
+            for (final INodeEntry node : nodes) {
+                copies.put(node.getNodename(), SmbExecutors.submit(executor, () -> {
+                    String remotefile = remoteFilepath(node, scriptfile, destination);
+                    copyPayload(context, project, payload, node, remotefile);
+                    return remotefile;
+                }));
+            }
+            return collect(copies);
+        } finally {
+            if (null != executor) {
+                executor.shutdownNow();
+            }
+            releasePayload(context, payload);
+        }
+    }
+
+    /**
+     * Wait for the copy to each node and gather the outcomes. If interrupted, the copies still running are
+     * cancelled.
+     *
+     * @param copies the copy to each node, by node name
+     */
+    static SmbMultiNodeCopyResult collect(final Map<String, ? extends Future<String>> copies)
+            throws FileCopierException {
+        final SmbMultiNodeCopyResult result = new SmbMultiNodeCopyResult();
+        for (Map.Entry<String, ? extends Future<String>> copy : copies.entrySet()) {
+            final String nodename = copy.getKey();
+            try {
+                result.succeeded(nodename, copy.getValue().get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof FileCopierException) {
+                    result.failed(nodename, (FileCopierException) e.getCause());
+                } else {
+                    result.failed(nodename, new FileCopierException("SMB file copy failed.",
+                            Reason.CopyFileFailed, e.getCause()));
+                }
+            } catch (InterruptedException e) {
+                for (Future<String> other : copies.values()) {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new FileCopierException("SMB file copy interrupted.", StepFailureReason.Interrupted, e);
+            }
+        }
+        return result;
     }
 }
@@ -0,0 +1,202 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * SmbHostStats holds the totals of all copies to a single host. Each host gets an MBean in the platform MBean
+ * server, named com.dtolabs.rundeck.plugin.smb:type=SmbHostStats,host="hostname", so that slow nodes can be
+ * spotted from any JMX console.
+ * <p>
+ * At most {@link #MAX_HOSTS} hosts are kept. Beyond that the host copied to least recently is dropped and its MBean
+ * unregistered, so that a server copying to ever changing hosts doesn't fill the MBean server; its totals start
+ * over if it is copied to again.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbHostStats implements SmbHostStatsMBean {
+    static final String DOMAIN = "com.dtolabs.rundeck.plugin.smb";
+    static final int MAX_HOSTS = 1000;
+
+    private static final Map<String, SmbHostStats> HOSTS = hosts(MAX_HOSTS);
+
+    /**
+     * @return the stats for the host, registering its MBean the first time the host is seen
+     */
+    static SmbHostStats forHost(final String hostname) {
+        return forHost(HOSTS, hostname);
+    }
+
+    /**
+     * @return a map of hosts to their stats, which unregisters the MBean of the least recently used host beyond
+     * maxHosts
+     */
+    static Map<String, SmbHostStats> hosts(final int maxHosts) {
+        return new LinkedHashMap<String, SmbHostStats>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SmbHostStats> eldest) {
+                if (size() <= maxHosts) {
+                    return false;
+                }
+                eldest.getValue().unregister();
+                return true;
+            }
+        };
+    }
+
+    static SmbHostStats forHost(final Map<String, SmbHostStats> hosts, final String hostname) {
+        final String key = hostname.toLowerCase();
+        synchronized (hosts) {
+            SmbHostStats stats = hosts.get(key);
+            if (null == stats) {
+                stats = new SmbHostStats(key);
+                stats.register();
+                hosts.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    private final String hostname;
+    private ObjectName name;
+    private long copies;
+    private long failedCopies;
+    private long skippedCopies;
+    private long retries;
+    private long bytes;
+    private long maxCopyNanos;
+    private final long[] phaseNanos = new long[SmbCopyMetrics.Phase.values().length];
+
+    SmbHostStats(final String hostname) {
+        this.hostname = hostname;
+    }
+
+    private void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":type=SmbHostStats,host=" + ObjectName.quote(hostname));
+            // Replace the MBean left behind by an earlier load of the plugin
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.name = name;
+        } catch (JMException e) {
+            // The stats are still recorded and logged without JMX
+        }
+    }
+
+    private void unregister() {
+        if (null == name) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already replaced by a later load of the plugin
+        }
+        name = null;
+    }
+
+    synchronized void record(final SmbCopyMetrics metrics) {
+        copies++;
+        if (metrics.isFailed()) {
+            failedCopies++;
+        } else if (metrics.isSkipped()) {
+            skippedCopies++;
+        }
+        retries += metrics.getRetries();
+        bytes += metrics.getBytes();
+        maxCopyNanos = Math.max(maxCopyNanos, metrics.getTotalNanos());
+        for (SmbCopyMetrics.Phase phase : SmbCopyMetrics.Phase.values()) {
+            phaseNanos[phase.ordinal()] += metrics.getNanos(phase);
+        }
+    }
+
+    private synchronized long phaseMillis(final SmbCopyMetrics.Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]);
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public synchronized long getCopies() {
+        return copies;
+    }
+
+    public synchronized long getFailedCopies() {
+        return failedCopies;
+    }
+
+    public synchronized long getSkippedCopies() {
+        return skippedCopies;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized long getBytesTransferred() {
+        return bytes;
+    }
+
+    public synchronized long getAverageBytesPerSecond() {
+        final long nanos = phaseNanos[SmbCopyMetrics.Phase.TRANSFER.ordinal()];
+        return nanos > 0 ? (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos) : 0;
+    }
+
+    public long getTotalQueueMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.QUEUE);
+    }
+
+    public long getTotalResolveMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.RESOLVE);
+    }
+
+    public long getTotalConnectMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.CONNECT);
+    }
+
+    public long getTotalAuthenticateMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.AUTHENTICATE);
+    }
+
+    public long getTotalShareConnectMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.SHARE_CONNECT);
+    }
+
+    public long getTotalMkdirMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.MKDIR);
+    }
+
+    public long getTotalTransferMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.TRANSFER);
+    }
+
+    public long getTotalVerifyMillis() {
+        return phaseMillis(SmbCopyMetrics.Phase.VERIFY);
+    }
+
+    public synchronized long getMaxCopyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxCopyNanos);
+    }
+
+    public synchronized void reset() {
+        copies = 0;
+        failedCopies = 0;
+        skippedCopies = 0;
+        retries = 0;
+        bytes = 0;
+        maxCopyNanos = 0;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = 0;
+        }
+    }
+}
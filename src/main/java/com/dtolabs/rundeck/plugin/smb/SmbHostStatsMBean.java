@@ -0,0 +1,53 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+
+/**
+ * JMX view of the SMB copy totals for a single host.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public interface SmbHostStatsMBean {
+
+    String getHostname();
+
+    long getCopies();
+
+    long getFailedCopies();
+
+    long getSkippedCopies();
+
+    long getRetries();
+
+    long getBytesTransferred();
+
+    /**
+     * @return the average transfer rate in bytes per second, over all copies to the host
+     */
+    long getAverageBytesPerSecond();
+
+    /**
+     * @return the time copies to the host waited for a transfer slot, in milliseconds
+     */
+    long getTotalQueueMillis();
+
+    long getTotalResolveMillis();
+
+    long getTotalConnectMillis();
+
+    long getTotalAuthenticateMillis();
+
+    long getTotalShareConnectMillis();
+
+    long getTotalMkdirMillis();
+
+    long getTotalTransferMillis();
+
+    long getTotalVerifyMillis();
+
+    /**
+     * @return the duration of the slowest copy to the host, in milliseconds
+     */
+    long getMaxCopyMillis();
+
+    void reset();
+}
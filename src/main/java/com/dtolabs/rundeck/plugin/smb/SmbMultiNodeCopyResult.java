@@ -0,0 +1,48 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.dtolabs.rundeck.core.execution.service.FileCopierException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * SmbMultiNodeCopyResult holds the outcome of copying one source to a set of nodes: the remote file path for each
+ * node that succeeded, and the failure for each node that did not.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbMultiNodeCopyResult {
+    private final Map<String, String> remoteFiles = new LinkedHashMap<String, String>();
+    private final Map<String, FileCopierException> failures = new LinkedHashMap<String, FileCopierException>();
+
+    void succeeded(final String nodename, final String remotefile) {
+        remoteFiles.put(nodename, remotefile);
+    }
+
+    void failed(final String nodename, final FileCopierException failure) {
+        failures.put(nodename, failure);
+    }
+
+    /**
+     * @return the remote file path, by node name, for every node the source was copied to
+     */
+    public Map<String, String> getRemoteFiles() {
+        return Collections.unmodifiableMap(remoteFiles);
+    }
+
+    /**
+     * @return the copy failure, by node name, for every node the source could not be copied to
+     */
+    public Map<String, FileCopierException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return true if the source was copied to every node
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,272 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.dtolabs.rundeck.core.common.Framework;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+
+
+/**
+ * SmbNodeSettings holds the plugin settings for a node, resolved from the node attributes, project properties and
+ * framework properties, see {@link SmbFileCopier}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbNodeSettings {
+    private String username;
+    private String domain;
+    private String passwordStoragePath;
+    private int retryMax;
+    private int retryDelay;
+    private int retryBackoffMultiplier;
+    private int retryMaxDelay;
+    private int circuitBreakerThreshold;
+    private long circuitBreakerCooldown;
+    private int poolMaxPerHost;
+    private long poolIdleTimeout;
+    private boolean streamingUpload;
+    private int uploadBufferSize;
+    private int writeOutstanding;
+    private long directoryCacheTtl;
+    private int directoryStreams;
+    private SmbSync.Mode syncMode;
+    private SmbClientSettings clientSettings;
+    private String site;
+    private long bandwidthLimit;
+    private long siteBandwidthLimit;
+    private long hostBandwidthLimit;
+    private int maxTransfers;
+    private boolean verify;
+    private SmbPathResolver pathResolver;
+
+    SmbNodeSettings() {
+    }
+
+    static SmbNodeSettings resolve(
+            final INodeEntry node,
+            final String frameworkProject,
+            final Framework framework
+    ) throws ConfigurationException
+    {
+        final SmbNodeSettings settings = new SmbNodeSettings();
+        String user;
+        if (null != SmbFileCopier.nonBlank(node.getUsername()) || node.containsUserName()) {
+            user = SmbFileCopier.nonBlank(node.getUsername());
+        } else {
+            user = SmbFileCopier.resolveProperty(SmbFileCopier.SMB_USER, null, node, frameworkProject, framework);
+        }
+        if (null == user) {
+            throw new ConfigurationException("No SMB user configured for node " + node.getNodename());
+        }
+        // The domain may prefix the user name with a backslash, or follow it after an @
+        if (user.contains("\\")) {
+            settings.domain = user.substring(0, user.indexOf('\\'));
+            user = user.substring(user.indexOf('\\') + 1);
+        } else if (user.contains("@")) {
+            settings.domain = user.substring(user.lastIndexOf('@') + 1);
+            user = user.substring(0, user.lastIndexOf('@'));
+        }
+        settings.username = user;
+        settings.passwordStoragePath = SmbFileCopier.resolveProperty(SmbFileCopier.SMB_PASSWORD_STORAGE_PATH, null,
+                node, frameworkProject, framework);
+        settings.retryMax = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_RETRY_MAX,
+                SmbFileCopier.DEFAULT_SMB_RETRY_MAX, node, frameworkProject, framework);
+        settings.retryDelay = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_RETRY_DELAY,
+                SmbFileCopier.DEFAULT_SMB_RETRY_DELAY, node, frameworkProject, framework);
+        settings.retryBackoffMultiplier = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_RETRY_BACKOFF_MULTIPLIER,
+                SmbFileCopier.DEFAULT_SMB_RETRY_BACKOFF_MULTIPLIER, node, frameworkProject, framework);
+        settings.retryMaxDelay = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_RETRY_MAX_DELAY,
+                SmbFileCopier.DEFAULT_SMB_RETRY_MAX_DELAY, node, frameworkProject, framework);
+        settings.circuitBreakerThreshold = SmbFileCopier.resolveIntProperty(
+                SmbFileCopier.SMB_CIRCUIT_BREAKER_THRESHOLD, SmbFileCopier.DEFAULT_SMB_CIRCUIT_BREAKER_THRESHOLD, node,
+                frameworkProject, framework);
+        settings.circuitBreakerCooldown = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_CIRCUIT_BREAKER_COOLDOWN,
+                SmbFileCopier.DEFAULT_SMB_CIRCUIT_BREAKER_COOLDOWN, node, frameworkProject, framework) * 1000L;
+        settings.poolMaxPerHost = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_POOL_MAX_PER_HOST,
+                SmbFileCopier.DEFAULT_SMB_POOL_MAX_PER_HOST, node, frameworkProject, framework);
+        settings.poolIdleTimeout = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_POOL_IDLE_TIMEOUT,
+                SmbFileCopier.DEFAULT_SMB_POOL_IDLE_TIMEOUT, node, frameworkProject, framework) * 1000L;
+        settings.streamingUpload = SmbFileCopier.resolveBooleanProperty(SmbFileCopier.SMB_STREAMING_UPLOAD,
+                SmbFileCopier.DEFAULT_SMB_STREAMING_UPLOAD, node, frameworkProject, framework);
+        settings.uploadBufferSize = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_UPLOAD_BUFFER_SIZE,
+                SmbFileCopier.DEFAULT_SMB_UPLOAD_BUFFER_SIZE, node, frameworkProject, framework);
+        settings.writeOutstanding = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_WRITE_OUTSTANDING,
+                SmbFileCopier.DEFAULT_SMB_WRITE_OUTSTANDING, node, frameworkProject, framework);
+        settings.directoryCacheTtl = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_DIRECTORY_CACHE_TTL,
+                SmbFileCopier.DEFAULT_SMB_DIRECTORY_CACHE_TTL, node, frameworkProject, framework) * 1000L;
+        settings.directoryStreams = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_DIRECTORY_STREAMS,
+                SmbFileCopier.DEFAULT_SMB_DIRECTORY_STREAMS, node, frameworkProject, framework);
+        settings.syncMode = SmbSync.Mode.forName(SmbFileCopier.resolveProperty(SmbFileCopier.SMB_SYNC_MODE,
+                SmbFileCopier.DEFAULT_SMB_SYNC_MODE, node, frameworkProject, framework));
+        settings.clientSettings = resolveClientSettings(node, frameworkProject, framework);
+        settings.site = SmbFileCopier.nonBlank(SmbFileCopier.resolveProperty(SmbFileCopier.SMB_SITE, null, node,
+                frameworkProject, framework));
+        settings.siteBandwidthLimit = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_SITE_BANDWIDTH_LIMIT,
+                SmbFileCopier.DEFAULT_SMB_SITE_BANDWIDTH_LIMIT, node, frameworkProject, framework) * 1024L;
+        settings.hostBandwidthLimit = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_HOST_BANDWIDTH_LIMIT,
+                SmbFileCopier.DEFAULT_SMB_HOST_BANDWIDTH_LIMIT, node, frameworkProject, framework) * 1024L;
+        settings.maxTransfers = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_MAX_TRANSFERS,
+                SmbFileCopier.DEFAULT_SMB_MAX_TRANSFERS, node, frameworkProject, framework);
+        // Shared by all nodes, so not taken from node attributes
+        settings.bandwidthLimit = SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_BANDWIDTH_LIMIT,
+                SmbFileCopier.DEFAULT_SMB_BANDWIDTH_LIMIT, null, frameworkProject, framework) * 1024L;
+        settings.verify = SmbFileCopier.resolveBooleanProperty(SmbFileCopier.SMB_VERIFY,
+                SmbFileCopier.DEFAULT_SMB_VERIFY, node, frameworkProject, framework);
+        settings.pathResolver = SmbPathResolver.forShares(SmbFileCopier.resolveProperty(SmbFileCopier.SMB_SHARE_MAP,
+                SmbFileCopier.DEFAULT_SMB_SHARE_MAP, node, frameworkProject, framework));
+        return settings;
+    }
+
+    private static SmbClientSettings resolveClientSettings(
+            final INodeEntry node,
+            final String frameworkProject,
+            final Framework framework
+    ) throws ConfigurationException
+    {
+        return new SmbClientSettings(
+                SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_READ_BUFFER_SIZE,
+                        SmbFileCopier.DEFAULT_SMB_READ_BUFFER_SIZE, node, frameworkProject, framework),
+                SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_WRITE_BUFFER_SIZE,
+                        SmbFileCopier.DEFAULT_SMB_WRITE_BUFFER_SIZE, node, frameworkProject, framework),
+                SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_TRANSACT_BUFFER_SIZE,
+                        SmbFileCopier.DEFAULT_SMB_TRANSACT_BUFFER_SIZE, node, frameworkProject, framework),
+                SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_TIMEOUT,
+                        SmbFileCopier.DEFAULT_SMB_TIMEOUT, node, frameworkProject, framework),
+                SmbFileCopier.resolveIntProperty(SmbFileCopier.SMB_SOCKET_TIMEOUT,
+                        SmbFileCopier.DEFAULT_SMB_SOCKET_TIMEOUT, node, frameworkProject, framework),
+                SmbClientSettings.parseDialects(SmbFileCopier.resolveProperty(SmbFileCopier.SMB_DIALECTS,
+                        SmbFileCopier.DEFAULT_SMB_DIALECTS, node, frameworkProject, framework)),
+                SmbFileCopier.resolveBooleanProperty(SmbFileCopier.SMB_SIGNING_REQUIRED,
+                        SmbFileCopier.DEFAULT_SMB_SIGNING_REQUIRED, node, frameworkProject, framework)
+        );
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the domain given with the user name, or null
+     */
+    String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return the storage path of the password, possibly with data context references, or null
+     */
+    String getPasswordStoragePath() {
+        return passwordStoragePath;
+    }
+
+    int getRetryMax() {
+        return retryMax;
+    }
+
+    int getRetryDelay() {
+        return retryDelay;
+    }
+
+    int getRetryBackoffMultiplier() {
+        return retryBackoffMultiplier;
+    }
+
+    /**
+     * @return the maximum retry delay in seconds
+     */
+    int getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * @return the circuit breaker cool-down in milliseconds
+     */
+    long getCircuitBreakerCooldown() {
+        return circuitBreakerCooldown;
+    }
+
+    int getPoolMaxPerHost() {
+        return poolMaxPerHost;
+    }
+
+    /**
+     * @return the pool idle timeout in milliseconds
+     */
+    long getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    boolean isStreamingUpload() {
+        return streamingUpload;
+    }
+
+    int getUploadBufferSize() {
+        return uploadBufferSize;
+    }
+
+    int getWriteOutstanding() {
+        return writeOutstanding;
+    }
+
+    /**
+     * @return the directory cache time to live in milliseconds
+     */
+    long getDirectoryCacheTtl() {
+        return directoryCacheTtl;
+    }
+
+    int getDirectoryStreams() {
+        return directoryStreams;
+    }
+
+    SmbSync.Mode getSyncMode() {
+        return syncMode;
+    }
+
+    SmbClientSettings getClientSettings() {
+        return clientSettings;
+    }
+
+    /**
+     * @return the site the node belongs to, or null
+     */
+    String getSite() {
+        return site;
+    }
+
+    /**
+     * @return the bandwidth limit of all transfers in bytes per second, 0 for no limit
+     */
+    long getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    /**
+     * @return the bandwidth limit of the node's site in bytes per second, 0 for no limit
+     */
+    long getSiteBandwidthLimit() {
+        return siteBandwidthLimit;
+    }
+
+    /**
+     * @return the bandwidth limit of the node's host in bytes per second, 0 for no limit
+     */
+    long getHostBandwidthLimit() {
+        return hostBandwidthLimit;
+    }
+
+    int getMaxTransfers() {
+        return maxTransfers;
+    }
+
+    boolean isVerify() {
+        return verify;
+    }
+
+    SmbPathResolver getPathResolver() {
+        return pathResolver;
+    }
+}
@@ -0,0 +1,213 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * SmbPathResolver maps a remote destination path to the share it is written through.
+ * <p>
+ * Three forms of path are accepted:
+ * <ul>
+ * <li>A UNC path such as \\fileserver\data\dir\file, written to the named share on the named server.</li>
+ * <li>A drive path below a mapped share, such as D:\deploy\dir\file with the mapping D:\deploy=deploy, written to
+ * the share relative to its root. The longest matching mapping wins.</li>
+ * <li>Any other drive path, such as C:\temp\file, written through the administrative share of the drive, C$.</li>
+ * </ul>
+ * Forward slashes are taken as backslashes, and repeated or trailing separators are dropped. Each path is scanned
+ * once, and the result is cached, so repeated copies to the same destination don't parse it again.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbPathResolver {
+    private static final int MAX_PATHS = 1024;
+
+    private static final ConcurrentMap<String, SmbPathResolver> RESOLVERS =
+            new ConcurrentHashMap<String, SmbPathResolver>();
+
+    /**
+     * @param shares comma separated mappings of a drive path to the share that exports it, such as
+     *               "D:\deploy=deploy,E:=data", or "" for none
+     *
+     * @return the resolver shared by all nodes with the same mappings
+     *
+     * @throws IllegalArgumentException if a mapping is not valid
+     */
+    static SmbPathResolver forShares(final String shares) {
+        final String key = null != shares ? shares.trim() : "";
+        SmbPathResolver resolver = RESOLVERS.get(key);
+        if (null == resolver) {
+            final SmbPathResolver created = new SmbPathResolver(parseShares(key), MAX_PATHS);
+            resolver = RESOLVERS.putIfAbsent(key, created);
+            if (null == resolver) {
+                resolver = created;
+            }
+        }
+        return resolver;
+    }
+
+    private final List<Mapping> mappings;
+    private final Map<String, SmbRemotePath> paths;
+
+    SmbPathResolver(final List<Mapping> mappings, final int maxPaths) {
+        this.mappings = mappings;
+        this.paths = new LinkedHashMap<String, SmbRemotePath>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SmbRemotePath> eldest) {
+                return size() > maxPaths;
+            }
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException if a mapping is not valid
+     */
+    static List<Mapping> parseShares(final String shares) {
+        final List<Mapping> mappings = new ArrayList<Mapping>();
+        for (String entry : shares.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = entry.lastIndexOf('=');
+            final String prefix = separator < 0 ? "" : trimSeparators(entry.substring(0, separator).trim()
+                    .replace('/', '\\'));
+            final String shareName = separator < 0 ? "" : entry.substring(separator + 1).trim();
+            if (shareName.isEmpty() || shareName.indexOf('\\') >= 0 || !isDrivePath(prefix)) {
+                throw new IllegalArgumentException("Not a valid share mapping: " + entry.trim()
+                        + ", expected a drive path and a share name, such as D:\\deploy=deploy");
+            }
+            mappings.add(new Mapping(prefix, shareName));
+        }
+        // Longest prefix first, so that the most specific mapping wins
+        Collections.sort(mappings, new Comparator<Mapping>() {
+            public int compare(final Mapping a, final Mapping b) {
+                return b.prefix.length() - a.prefix.length();
+            }
+        });
+        return mappings;
+    }
+
+    /**
+     * @return the share and path the remote file is written through, from the cache when it was resolved before
+     *
+     * @throws IllegalArgumentException if the path is neither a drive nor a UNC path
+     */
+    SmbRemotePath resolve(final String remotefile) {
+        synchronized (paths) {
+            final SmbRemotePath cached = paths.get(remotefile);
+            if (null != cached) {
+                return cached;
+            }
+        }
+        final SmbRemotePath resolved = parse(remotefile);
+        synchronized (paths) {
+            paths.put(remotefile, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolve the path without the cache.
+     *
+     * @throws IllegalArgumentException if the path is neither a drive nor a UNC path
+     */
+    SmbRemotePath parse(final String remotefile) {
+        final String path = remotefile.indexOf('/') < 0 ? remotefile : remotefile.replace('/', '\\');
+        if (path.startsWith("\\\\")) {
+            final int serverEnd = path.indexOf('\\', 2);
+            final int shareEnd = serverEnd < 0 ? -1 : path.indexOf('\\', serverEnd + 1);
+            final String shareName = serverEnd < 0 ? ""
+                    : path.substring(serverEnd + 1, shareEnd < 0 ? path.length() : shareEnd);
+            if (serverEnd <= 2 || shareName.isEmpty()) {
+                throw new IllegalArgumentException("Invalid UNC path, expected \\\\server\\share\\path: "
+                        + remotefile);
+            }
+            return new SmbRemotePath(path.substring(2, serverEnd), shareName,
+                    shareEnd < 0 ? "" : relative(path, shareEnd + 1));
+        }
+        if (!isDrivePath(path)) {
+            throw new IllegalArgumentException("Invalid path, expected a drive path such as C:\\dir\\file or a "
+                    + "UNC path such as \\\\server\\share\\dir\\file: " + remotefile);
+        }
+        for (Mapping mapping : mappings) {
+            if (mapping.matches(path)) {
+                return new SmbRemotePath(null, mapping.shareName, relative(path, mapping.prefix.length() + 1));
+            }
+        }
+        return new SmbRemotePath(null, path.charAt(0) + "$", relative(path, 3));
+    }
+
+    /**
+     * @return true if the path is a drive letter, optionally followed by a backslash and a path
+     */
+    private static boolean isDrivePath(final String path) {
+        if (path.length() < 2 || path.charAt(1) != ':' || path.length() > 2 && path.charAt(2) != '\\') {
+            return false;
+        }
+        final char c = path.charAt(0);
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    /**
+     * @return the part of the path from the start offset, without repeated or trailing separators
+     */
+    private static String relative(final String path, final int start) {
+        if (start >= path.length()) {
+            return "";
+        }
+        StringBuilder normalized = null;
+        int segment = start;
+        for (int i = start; i <= path.length(); i++) {
+            if (i < path.length() && path.charAt(i) != '\\') {
+                continue;
+            }
+            if (i == segment) {
+                // Empty segment: only copy the path when it needs cleaning up
+                if (null == normalized) {
+                    normalized = new StringBuilder(path.length() - start).append(path, start, i);
+                }
+            } else if (null != normalized) {
+                if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != '\\') {
+                    normalized.append('\\');
+                }
+                normalized.append(path, segment, i);
+            }
+            segment = i + 1;
+        }
+        if (null == normalized) {
+            return path.substring(start);
+        }
+        return trimSeparators(normalized.toString());
+    }
+
+    private static String trimSeparators(final String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '\\') {
+            end--;
+        }
+        return path.substring(0, end);
+    }
+
+    /**
+     * A drive path exported by a share.
+     */
+    static class Mapping {
+        private final String prefix;
+        private final String shareName;
+
+        Mapping(final String prefix, final String shareName) {
+            this.prefix = prefix;
+            this.shareName = shareName;
+        }
+
+        boolean matches(final String path) {
+            return path.regionMatches(true, 0, prefix, 0, prefix.length())
+                    && (path.length() == prefix.length() || path.charAt(prefix.length()) == '\\');
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * SmbPayload is the content of a single copy: a local file, the bytes of a script or a caller supplied stream.
+ * <p>
+ * Files, byte arrays and buffers can be read any number of times, so a copy can be retried and a single payload can
+ * be shared by the copies to many nodes. A stream can only be read once.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+abstract class SmbPayload {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ReentrantLock digestLock = new ReentrantLock();
+    private volatile String sha256;
+
+    /**
+     * Open a stream over the payload content.
+     */
+    abstract InputStream openStream() throws IOException;
+
+    /**
+     * Open a stream over the payload content, starting at the given offset.
+     */
+    InputStream openStream(final long offset) throws IOException {
+        final InputStream input = openStream();
+        long skipped = 0;
+        while (skipped < offset) {
+            long count = input.skip(offset - skipped);
+            if (count <= 0) {
+                input.close();
+                throw new IOException("Payload is shorter than offset " + offset);
+            }
+            skipped += count;
+        }
+        return input;
+    }
+
+    /**
+     * @return the payload length in bytes, or -1 if not known up front
+     */
+    abstract long length();
+
+    /**
+     * @return true if {@link #openStream()} can be called (again)
+     */
+    abstract boolean isReplayable();
+
+    /**
+     * @return a description of the payload source for the execution log
+     */
+    abstract String getDescription();
+
+    /**
+     * @return the hex encoded SHA-256 digest of the payload, computed on first use
+     */
+    String getSha256() throws IOException {
+        if (null != sha256) {
+            return sha256;
+        }
+        // A lock rather than a monitor, so that copies waiting for the content to be read don't pin virtual threads
+        digestLock.lock();
+        try {
+            if (null == sha256) {
+                final MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                final InputStream input = openStream();
+                try {
+                    final byte[] buffer = new byte[64 * 1024];
+                    int count;
+                    while ((count = input.read(buffer)) >= 0) {
+                        digest.update(buffer, 0, count);
+                    }
+                } finally {
+                    input.close();
+                }
+                sha256 = hex(digest.digest());
+            }
+            return sha256;
+        } finally {
+            digestLock.unlock();
+        }
+    }
+
+    /**
+     * @return the hex encoded SHA-256 digest of the payload if it is known already, or null
+     */
+    String getKnownSha256() {
+        return sha256;
+    }
+
+    /**
+     * Record the digest of the payload, computed while it was read for an upload.
+     */
+    void setSha256(final String sha256) {
+        digestLock.lock();
+        try {
+            if (null == this.sha256) {
+                this.sha256 = sha256;
+            }
+        } finally {
+            digestLock.unlock();
+        }
+    }
+
+    static String hex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Release any local resources held by the payload once the copy is finished.
+     *
+     * @return false if a resource could not be released
+     */
+    boolean release() {
+        return true;
+    }
+
+    static SmbPayload forFile(final File file, final boolean deleteOnRelease) {
+        return new FilePayload(file, deleteOnRelease);
+    }
+
+    static SmbPayload forBytes(final byte[] bytes, final String description) {
+        return new BytesPayload(bytes, description);
+    }
+
+    /**
+     * A payload over the remaining bytes of the buffer, which may be a direct buffer. The buffer must not be
+     * modified while the payload is in use.
+     */
+    static SmbPayload forBuffer(final ByteBuffer buffer, final String description) {
+        return new BufferPayload(buffer.asReadOnlyBuffer(), description);
+    }
+
+    static SmbPayload forStream(final InputStream input) {
+        return new StreamPayload(input);
+    }
+
+    static class FilePayload extends SmbPayload {
+        private final File file;
+        private final boolean deleteOnRelease;
+
+        FilePayload(final File file, final boolean deleteOnRelease) {
+            this.file = file;
+            this.deleteOnRelease = deleteOnRelease;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        InputStream openStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        InputStream openStream(final long offset) throws IOException {
+            final FileInputStream input = new FileInputStream(file);
+            input.getChannel().position(offset);
+            return input;
+        }
+
+        long length() {
+            return file.length();
+        }
+
+        boolean isReplayable() {
+            return true;
+        }
+
+        String getDescription() {
+            return file.getAbsolutePath();
+        }
+
+        boolean release() {
+            return !deleteOnRelease || file.delete();
+        }
+    }
+
+    static class BytesPayload extends SmbPayload {
+        private final byte[] bytes;
+        private final String description;
+
+        BytesPayload(final byte[] bytes, final String description) {
+            this.bytes = bytes;
+            this.description = description;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        InputStream openStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        InputStream openStream(final long offset) {
+            final int start = (int) Math.min(offset, bytes.length);
+            return new ByteArrayInputStream(bytes, start, bytes.length - start);
+        }
+
+        long length() {
+            return bytes.length;
+        }
+
+        boolean isReplayable() {
+            return true;
+        }
+
+        String getDescription() {
+            return description;
+        }
+    }
+
+    static class BufferPayload extends SmbPayload {
+        private final ByteBuffer buffer;
+        private final String description;
+
+        BufferPayload(final ByteBuffer buffer, final String description) {
+            this.buffer = buffer;
+            this.description = description;
+        }
+
+        InputStream openStream() {
+            return openStream(0);
+        }
+
+        InputStream openStream(final long offset) {
+            // Each stream reads through its own view, so concurrent copies don't share a position
+            final ByteBuffer view = buffer.duplicate();
+            view.position(view.position() + (int) Math.min(offset, view.remaining()));
+            return new BufferInputStream(view);
+        }
+
+        long length() {
+            return buffer.remaining();
+        }
+
+        boolean isReplayable() {
+            return true;
+        }
+
+        String getDescription() {
+            return description;
+        }
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(final byte[] bytes, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    static class StreamPayload extends SmbPayload {
+        private final InputStream input;
+        private boolean opened;
+
+        StreamPayload(final InputStream input) {
+            this.input = input;
+        }
+
+        synchronized InputStream openStream() throws IOException {
+            if (opened) {
+                throw new IOException("Input stream has already been consumed");
+            }
+            opened = true;
+            return input;
+        }
+
+        long length() {
+            return -1;
+        }
+
+        synchronized boolean isReplayable() {
+            return !opened;
+        }
+
+        String getDescription() {
+            return "input stream";
+        }
+    }
+}
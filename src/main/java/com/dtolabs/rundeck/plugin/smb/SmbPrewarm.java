@@ -0,0 +1,61 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * SmbPrewarm opens the SMB sessions of an execution ahead of its copies. The first copy of an execution starts the
+ * pre-warm of every other node the execution targets: each node gets an authenticated session with its share
+ * connected, left idle in the {@link SmbConnectionPool}. The copies to those nodes then reuse a session instead of
+ * resolving, connecting, negotiating and authenticating one after the other.
+ * <p>
+ * The pre-warm runs in the background, so the copy that started it is not held up.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbPrewarm {
+    private static final int MAX_EXECUTIONS = 1000;
+
+    private static final SmbPrewarm INSTANCE = new SmbPrewarm(MAX_EXECUTIONS);
+
+    static SmbPrewarm getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Boolean> executions;
+
+    SmbPrewarm(final int maxExecutions) {
+        this.executions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxExecutions;
+            }
+        };
+    }
+
+    /**
+     * @return true for the first copy of the execution, which is to start the pre-warm
+     */
+    synchronized boolean begin(final String executionId) {
+        return null == executions.put(executionId, Boolean.TRUE);
+    }
+
+    /**
+     * Run the pre-warm of each node in the background, see {@link SmbExecutors}, without waiting for them to finish.
+     *
+     * @param threads the maximum number of nodes pre-warmed concurrently
+     */
+    void start(final List<Runnable> nodes, final int threads) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-prewarm", Math.min(threads, nodes.size()));
+        for (Runnable node : nodes) {
+            executor.execute(node);
+        }
+        // The executor ends once the queued nodes are done
+        executor.shutdown();
+    }
+}
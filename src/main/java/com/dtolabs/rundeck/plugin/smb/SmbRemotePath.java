@@ -0,0 +1,51 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+
+/**
+ * SmbRemotePath is a remote file path split into the share it is written through, such as C$ for
+ * C:\temp\dispatch-script.bat, and the path of the file and its directory relative to the share root. UNC paths
+ * also name the server holding the share. See {@link SmbPathResolver}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbRemotePath {
+    private final String server;
+    private final String shareName;
+    private final String path;
+    private final String directory;
+
+    SmbRemotePath(final String server, final String shareName, final String path) {
+        this.server = server;
+        this.shareName = shareName;
+        this.path = path;
+        this.directory = path.lastIndexOf('\\') < 0 ? "" : path.substring(0, path.lastIndexOf('\\'));
+    }
+
+    /**
+     * @return the server named by a UNC path, or null if the share is on the node itself
+     */
+    String getServer() {
+        return server;
+    }
+
+    /**
+     * @return the name of the share, such as C$
+     */
+    String getShareName() {
+        return shareName;
+    }
+
+    /**
+     * @return the backslash separated path of the file relative to the share root
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the directory part of the path, or "" if the file is in the share root
+     */
+    String getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,133 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * SmbScriptCache shares one in-memory payload between the copies of the same script content within an execution,
+ * so that dispatching a script to many nodes encodes and buffers it once rather than once per node.
+ * <p>
+ * Entries are keyed by execution id and the content hash of the script, and compared in full on a hit. Scripts up
+ * to 1 MiB are held in a heap array; larger scripts in a direct buffer outside the heap. Entries expire once they
+ * have not been used for a while, and the least recently used are evicted when the total size exceeds the limit.
+ * <p>
+ * Scripts are encoded as UTF-8, with every line terminated by the line separator of the Rundeck server, matching
+ * the local line ending style Rundeck applied when it wrote a script to a temp file.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbScriptCache {
+    private static final int DIRECT_THRESHOLD = 1024 * 1024;
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final long IDLE_TTL = 10 * 60 * 1000L;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final SmbScriptCache INSTANCE = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+
+    static SmbScriptCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final long maxBytes;
+    private final long idleTtl;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    SmbScriptCache(final long maxBytes, final long idleTtl) {
+        this.maxBytes = maxBytes;
+        this.idleTtl = idleTtl;
+    }
+
+    /**
+     * @param executionId the id of the execution the script is dispatched by, or null to not share the payload
+     *
+     * @return the payload shared by all copies of the script within the execution
+     */
+    SmbPayload payload(final String executionId, final String script) {
+        if (null == executionId) {
+            return SmbPayload.forBytes(encode(script, System.getProperty("line.separator")), "script content");
+        }
+        // String caches its hash, so the lookup costs no more than a comparison with the cached script
+        final String key = executionId + "|" + script.length() + "|" + script.hashCode();
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (null != entry && entry.script.equals(script)) {
+                entry.lastUsed = System.currentTimeMillis();
+                return entry.payload;
+            }
+            // Encoded while holding the lock, so that nodes copied concurrently don't each encode the script
+            final SmbPayload payload = encode(script);
+            final Entry previous = entries.put(key, new Entry(script, payload));
+            if (null != previous) {
+                bytes -= previous.payload.length();
+            }
+            bytes += payload.length();
+            evict();
+            return payload;
+        }
+    }
+
+    private static SmbPayload encode(final String script) {
+        final byte[] encoded = encode(script, System.getProperty("line.separator"));
+        if (encoded.length < DIRECT_THRESHOLD) {
+            return SmbPayload.forBytes(encoded, "script content");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+        buffer.put(encoded);
+        buffer.flip();
+        return SmbPayload.forBuffer(buffer, "script content");
+    }
+
+    /**
+     * @param separator the line separator to end every line with, including a last line without one
+     *
+     * @return the script encoded with its line endings, whether \n, \r\n or \r, replaced by the separator
+     */
+    static byte[] encode(final String script, final String separator) {
+        final StringBuilder converted = new StringBuilder(script.length() + separator.length());
+        int start = 0;
+        for (int i = 0; i < script.length(); i++) {
+            final char c = script.charAt(i);
+            if (c == '\n' || c == '\r') {
+                converted.append(script, start, i).append(separator);
+                if (c == '\r' && i + 1 < script.length() && script.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        if (start < script.length()) {
+            converted.append(script, start, script.length()).append(separator);
+        }
+        return converted.toString().getBytes(CHARSET);
+    }
+
+    /**
+     * Remove idle entries, then the least recently used until the total size is within the limit.
+     */
+    private void evict() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (now - entry.lastUsed >= idleTtl || bytes > maxBytes) {
+                bytes -= entry.payload.length();
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String script;
+        private final SmbPayload payload;
+        private long lastUsed = System.currentTimeMillis();
+
+        Entry(final String script, final SmbPayload payload) {
+            this.script = script;
+            this.payload = payload;
+        }
+    }
+}
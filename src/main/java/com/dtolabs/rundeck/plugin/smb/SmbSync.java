@@ -0,0 +1,160 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+
+
+/**
+ * SmbSync decides whether an upload can be skipped because the remote file is already current.
+ * <p>
+ * In size-time mode each upload sets the last write time of the remote file to the modification time of the local
+ * file, and the remote file is current when both its size and its last write time match the local file. A remote
+ * file written later than the local file was modified is not current: the local file may have been replaced by an
+ * older revision of the same size, as when unpacking an archive. Only local files have a modification time, so
+ * other payloads are always uploaded in this mode. In hash mode the SHA-256 digest of the payload is compared with the digest stored in an
+ * alternate data stream of the remote file by the last upload.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbSync {
+    static final String HASH_STREAM = ":rundeck.sha256";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * The difference in modification time taken as equal: FAT stores the last write time in 2 second steps, NTFS
+     * in 100 ns steps, and the local time is read in milliseconds.
+     */
+    static final long TIME_RESOLUTION = 2000;
+
+    enum Mode {
+        OFF("off"), SIZE_TIME("size-time"), HASH("hash");
+
+        private final String name;
+
+        Mode(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the name is not one of the modes
+         */
+        static Mode forName(final String name) {
+            for (Mode mode : values()) {
+                if (mode.name.equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Not a valid sync mode: " + name
+                    + ", expected off, size-time or hash");
+        }
+    }
+
+    private final Mode mode;
+    private final SmbPayload payload;
+
+    SmbSync(final Mode mode, final SmbPayload payload) {
+        this.mode = mode;
+        this.payload = payload;
+    }
+
+    /**
+     * @return true if the remote file at path already has the payload content and the upload can be skipped
+     */
+    boolean isCurrent(final DiskShare share, final String path) throws IOException {
+        if (mode == Mode.OFF || !payload.isReplayable() || payload.length() < 0) {
+            return false;
+        }
+        final FileAllInformation info;
+        try {
+            info = share.getFileInformation(path);
+        } catch (SMBApiException e) {
+            if (e.getStatus() == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+                    || e.getStatus() == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+        if (info.getStandardInformation().getEndOfFile() != payload.length()) {
+            return false;
+        }
+        if (mode == Mode.SIZE_TIME) {
+            if (!(payload instanceof SmbPayload.FilePayload)) {
+                return false;
+            }
+            final long localModified = ((SmbPayload.FilePayload) payload).getFile().lastModified();
+            return Math.abs(info.getBasicInformation().getLastWriteTime().toEpochMillis() - localModified)
+                    < TIME_RESOLUTION;
+        }
+        return payload.getSha256().equals(readRemoteHash(share, path));
+    }
+
+    /**
+     * Record the state compared by the next sync with the remote file after an upload: in size-time mode the
+     * modification time of the local file, in hash mode the payload digest.
+     */
+    void uploaded(final DiskShare share, final String path) throws IOException {
+        if (mode == Mode.SIZE_TIME && payload instanceof SmbPayload.FilePayload) {
+            final long localModified = ((SmbPayload.FilePayload) payload).getFile().lastModified();
+            // Set once the upload has closed the file, which may update the last write time itself
+            share.setFileInformation(path, new FileBasicInformation(FileBasicInformation.DONT_SET,
+                    FileBasicInformation.DONT_SET, FileTime.ofEpochMillis(localModified),
+                    FileBasicInformation.DONT_SET, 0));
+            return;
+        }
+        if (mode != Mode.HASH || !payload.isReplayable()) {
+            return;
+        }
+        final byte[] hash = payload.getSha256().getBytes(ASCII);
+        final File file = share.openFile(
+                path + HASH_STREAM,
+                EnumSet.of(AccessMask.GENERIC_WRITE),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_WRITE),
+                SMB2CreateDisposition.FILE_OVERWRITE_IF,
+                EnumSet.noneOf(SMB2CreateOptions.class)
+        );
+        try {
+            file.write(hash, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    private String readRemoteHash(final DiskShare share, final String path) {
+        final File file;
+        try {
+            file = share.openFile(
+                    path + HASH_STREAM,
+                    EnumSet.of(AccessMask.GENERIC_READ),
+                    EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                    EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
+                    SMB2CreateDisposition.FILE_OPEN,
+                    EnumSet.noneOf(SMB2CreateOptions.class)
+            );
+        } catch (SMBApiException e) {
+            // No digest stored by an earlier upload
+            return null;
+        }
+        try {
+            // Hex encoded SHA-256 digest
+            final byte[] hash = new byte[64];
+            final int count = file.read(hash, 0);
+            return count > 0 ? new String(hash, 0, count, ASCII).trim() : null;
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * SmbTransferScheduler shares the network between all SMB transfers in the JVM.
+ * <p>
+ * Bandwidth is limited by token buckets: one global, one per site and one per host. A site is a group of nodes
+ * named by the smb-site node attribute, typically the nodes behind one WAN link. Every chunk written takes its size
+ * in tokens from each bucket that applies, waiting for them to refill when needed, so that concurrent transfers
+ * through the same bucket share its rate chunk by chunk.
+ * <p>
+ * The number of transfers running at once can be limited too, per site, or per host for hosts outside a site. Each
+ * transfer brings the limit configured for its node, and starts once fewer transfers than that are running to its
+ * site or host. Transfers waiting for a slot are queued per execution and the executions are served in turn, so
+ * that a job copying to many nodes doesn't hold back the transfers of other jobs until all of its own have run.
+ * <p>
+ * The state of a site or host is dropped once no transfer uses it and its bucket has refilled, so that copies to
+ * ever new hosts don't grow the scheduler.
+ * <p>
+ * Waiting transfers park on a lock condition rather than an object monitor, so that on virtual threads they don't
+ * hold on to their carrier thread.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbTransferScheduler {
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final SmbTransferScheduler INSTANCE = new SmbTransferScheduler();
+
+    static SmbTransferScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private final TokenBucket global = new TokenBucket();
+    private final Map<String, Scope> sites = new HashMap<String, Scope>();
+    private final Map<String, Scope> hosts = new HashMap<String, Scope>();
+    private final Map<String, Deque<Ticket>> waiting = new LinkedHashMap<String, Deque<Ticket>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admitted = lock.newCondition();
+    private int active;
+    private long swept = System.nanoTime();
+
+    SmbTransferScheduler() {
+    }
+
+    /**
+     * Wait for a transfer slot, taking turns with the transfers of other executions.
+     *
+     * @param executionId       the execution the transfer belongs to, or null
+     * @param site              the site of the host, or null if it belongs to none
+     * @param maxTransfers      the maximum number of transfers running at once to the site, or to the host if it
+     *                          belongs to none, 0 for no limit
+     * @param globalRate        the bandwidth limit of all transfers, in bytes per second, 0 for no limit
+     * @param siteRate          the bandwidth limit of the site, in bytes per second, 0 for no limit
+     * @param hostRate          the bandwidth limit of the host, in bytes per second, 0 for no limit
+     *
+     * @return the ticket to pass the transferred bytes through, to be released when the transfer is done
+     */
+    Ticket admit(
+            final String executionId,
+            final String hostname,
+            final String site,
+            final int maxTransfers,
+            final long globalRate,
+            final long siteRate,
+            final long hostRate
+    ) throws InterruptedException
+    {
+        final Ticket ticket;
+        lock.lock();
+        try {
+            evictIdle();
+            global.setRate(globalRate);
+            ticket = new Ticket(global, null != site ? scope(sites, site.toLowerCase(), siteRate) : null,
+                    scope(hosts, hostname.toLowerCase(), hostRate), maxTransfers);
+            final String key = null != executionId ? executionId : "";
+            Deque<Ticket> queue = waiting.get(key);
+            if (null == queue) {
+                queue = new ArrayDeque<Ticket>();
+                waiting.put(key, queue);
+            }
+            queue.add(ticket);
+            grant();
+            try {
+                while (!ticket.admitted) {
+                    admitted.await();
+                }
+            } catch (InterruptedException e) {
+                if (!ticket.admitted) {
+                    queue.remove(ticket);
+                    if (queue.isEmpty() && waiting.get(key) == queue) {
+                        waiting.remove(key);
+                    }
+                }
+                release(ticket);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return ticket;
+    }
+
+    private static Scope scope(final Map<String, Scope> scopes, final String key, final long rate) {
+        Scope scope = scopes.get(key);
+        if (null == scope) {
+            scope = new Scope(key);
+            scopes.put(key, scope);
+        }
+        scope.bucket.setRate(rate);
+        scope.tickets++;
+        return scope;
+    }
+
+    /**
+     * Admit waiting transfers while their sites or hosts have free slots, one execution at a time in turn.
+     */
+    private void grant() {
+        boolean granted = false;
+        boolean admittedOne = true;
+        while (admittedOne) {
+            admittedOne = false;
+            for (Iterator<Map.Entry<String, Deque<Ticket>>> it = waiting.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Deque<Ticket>> next = it.next();
+                final Ticket ticket = poll(next.getValue());
+                if (null == ticket) {
+                    continue;
+                }
+                ticket.admitted = true;
+                ticket.slots.active++;
+                active++;
+                it.remove();
+                if (!next.getValue().isEmpty()) {
+                    // Back of the line for the execution's next transfer
+                    waiting.put(next.getKey(), next.getValue());
+                }
+                granted = true;
+                admittedOne = true;
+                break;
+            }
+        }
+        if (granted) {
+            admitted.signalAll();
+        }
+    }
+
+    /**
+     * @return the first transfer of the queue that may start, removed from the queue, or null
+     */
+    private static Ticket poll(final Deque<Ticket> queue) {
+        for (Iterator<Ticket> it = queue.iterator(); it.hasNext(); ) {
+            final Ticket ticket = it.next();
+            if (ticket.maxTransfers <= 0 || ticket.slots.active < ticket.maxTransfers) {
+                it.remove();
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Release the ticket, giving its slot to a waiting transfer. A ticket released again is ignored.
+     */
+    void release(final Ticket ticket) {
+        lock.lock();
+        try {
+            if (ticket.released) {
+                return;
+            }
+            ticket.released = true;
+            if (ticket.admitted) {
+                ticket.admitted = false;
+                ticket.slots.active--;
+                active--;
+            }
+            done(sites, ticket.site);
+            done(hosts, ticket.host);
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void done(final Map<String, Scope> scopes, final Scope scope) {
+        if (null == scope) {
+            return;
+        }
+        scope.tickets--;
+        if (scope.isIdle()) {
+            scopes.remove(scope.key);
+        }
+    }
+
+    /**
+     * Every so often, drop the sites and hosts whose buckets have refilled since their last transfer.
+     */
+    private void evictIdle() {
+        final long now = System.nanoTime();
+        if (now - swept < SWEEP_INTERVAL) {
+            return;
+        }
+        swept = now;
+        for (Map<String, Scope> scopes : Arrays.asList(sites, hosts)) {
+            for (Iterator<Scope> it = scopes.values().iterator(); it.hasNext(); ) {
+                if (it.next().isIdle()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of transfers running
+     */
+    int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of transfers waiting for a slot
+     */
+    int getWaiting() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Deque<Ticket> queue : waiting.values()) {
+                count += queue.size();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sites and hosts the scheduler keeps state for
+     */
+    int getScopes() {
+        lock.lock();
+        try {
+            return sites.size() + hosts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The bucket and slots of a site or host.
+     */
+    private static class Scope {
+        private final String key;
+        private final TokenBucket bucket = new TokenBucket();
+        private int tickets;
+        private int active;
+
+        Scope(final String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return true if no transfer uses the scope and dropping its bucket loses nothing
+         */
+        boolean isIdle() {
+            return tickets == 0 && bucket.isFull();
+        }
+    }
+
+    /**
+     * A transfer admitted by the scheduler, throttled by the buckets that apply to it.
+     */
+    static class Ticket {
+        private final TokenBucket[] buckets;
+        private final Scope site;
+        private final Scope host;
+        private final Scope slots;
+        private final int maxTransfers;
+        private boolean admitted;
+        private boolean released;
+
+        private Ticket(final TokenBucket global, final Scope site, final Scope host, final int maxTransfers) {
+            this.buckets = new TokenBucket[]{global, null != site ? site.bucket : null, host.bucket};
+            this.site = site;
+            this.host = host;
+            this.slots = null != site ? site : host;
+            this.maxTransfers = maxTransfers;
+        }
+
+        /**
+         * Take tokens for the bytes about to be written, waiting until every bucket can cover them.
+         */
+        void acquire(final int bytes) throws InterruptedException {
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                if (null != bucket) {
+                    wait = Math.max(wait, bucket.reserve(bytes));
+                }
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /**
+     * A token bucket that holds up to one second of its rate. Reservations may overdraw it, so that chunks larger
+     * than the bucket get through; the overdraft is the time the caller waits. A bucket starts out full, as it is
+     * after being idle.
+     */
+    static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        synchronized void setRate(final long rate) {
+            refill();
+            if (this.rate <= 0) {
+                tokens = rate;
+            }
+            this.rate = rate;
+        }
+
+        /**
+         * @return true if the bucket holds its full second of tokens, or has no limit
+         */
+        synchronized boolean isFull() {
+            refill();
+            return rate <= 0 || tokens >= rate;
+        }
+
+        /**
+         * @return the nanoseconds to wait before the reserved bytes may be sent
+         */
+        synchronized long reserve(final int bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            refilled = now;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SmbUploader writes a payload straight into a file on a remote share, without staging it in a local temp file.
+ * <p>
+ * Writes are pipelined: up to maxOutstanding SMB2 WRITE requests are kept in flight, so that on high latency links
+ * the transfer is not bound by one round-trip per chunk. Each request asks for as many credits as its chunk needs.
+ * When the server has granted fewer, smbj shrinks the request to the credits available; the rest of the chunk is
+ * sent in a follow-up request and the window is halved until requests get their full credits again.
+ * <p>
+ * An uploader keeps track of the offset up to which the server has acknowledged all writes. When an upload is
+ * retried after a transport error, it reopens the remote file and checks that the last bytes written before that
+ * offset match the payload. If they do, only the rest of the payload is sent.
+ * <p>
+ * When asked to, the uploader computes the SHA-256 digest of the payload in the same pass as it is sent, for
+ * {@link SmbVerifier} to check the remote file against.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbUploader {
+    private static final int CREDIT_PAYLOAD_SIZE = SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+    private static final int RESUME_CHECK_SIZE = 64 * 1024;
+
+    private final int bufferSize;
+    private final int maxOutstanding;
+    private final boolean digest;
+    private long acknowledged;
+    private long resumedFrom;
+
+    /**
+     * @param bufferSize     the write chunk size, capped at the maximum write size negotiated with the server
+     * @param maxOutstanding the maximum number of write requests in flight, 1 to write sequentially
+     */
+    SmbUploader(final int bufferSize, final int maxOutstanding) {
+        this(bufferSize, maxOutstanding, false);
+    }
+
+    /**
+     * @param digest true to compute the digest of the payload while it is uploaded, see {@link
+     *               SmbPayload#getSha256()}
+     */
+    SmbUploader(final int bufferSize, final int maxOutstanding, final boolean digest) {
+        this.bufferSize = bufferSize;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.digest = digest;
+    }
+
+    /**
+     * @return a new uploader that resumes where this one got to, for a retry that must not share this one with a
+     * worker of the earlier attempt
+     */
+    SmbUploader copy() {
+        final SmbUploader copy = new SmbUploader(bufferSize, maxOutstanding, digest);
+        copy.acknowledged = acknowledged;
+        return copy;
+    }
+
+    /**
+     * Upload the payload to the given path on the share. The first attempt replaces any existing file; a retry
+     * resumes at the last acknowledged offset when the bytes already written check out.
+     *
+     * @param ticket the scheduler ticket every chunk is passed through before it is written, or null
+     *
+     * @return the number of bytes written by this attempt
+     */
+    long upload(
+            final DiskShare share,
+            final String path,
+            final SmbPayload payload,
+            final SmbTransferScheduler.Ticket ticket
+    ) throws IOException, InterruptedException
+    {
+        resumedFrom = 0;
+        long remoteSize = 0;
+        File file = null;
+        Throwable failure = null;
+        try {
+            if (acknowledged > 0 && payload.isReplayable()) {
+                file = openForResume(share, path);
+                remoteSize = file.getFileInformation().getStandardInformation().getEndOfFile();
+                resumedFrom = verifiedOffset(file, payload, Math.min(acknowledged, remoteSize));
+                if (resumedFrom == 0) {
+                    final File unverified = file;
+                    file = null;
+                    unverified.close();
+                }
+            }
+            if (null == file) {
+                acknowledged = 0;
+                file = openForWrite(share, path);
+            }
+            // A resumed upload doesn't read the start of the payload, which is then digested on demand instead
+            final MessageDigest md = digest && resumedFrom == 0 && null == payload.getKnownSha256()
+                    ? SmbVerifier.newDigest() : null;
+            final InputStream input = null != md ? new DigestInputStream(payload.openStream(), md)
+                    : payload.openStream(resumedFrom);
+            try {
+                final long length = payload.length() >= 0 ? payload.length() - resumedFrom : -1;
+                final long end = write(share, file, input, length, resumedFrom, ticket);
+                if (remoteSize > end) {
+                    // Drop anything written past the end by requests that were never acknowledged
+                    file.setLength(end);
+                }
+                if (null != md) {
+                    payload.setSha256(SmbPayload.hex(md.digest()));
+                }
+                return end - resumedFrom;
+            } finally {
+                input.close();
+            }
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            close(file, failure);
+        }
+    }
+
+    /**
+     * Close the file. After a failed upload the connection is likely gone, so that the close fails too: its
+     * exception is added to the failure rather than replacing it, which would hide the transport error from the
+     * retry.
+     */
+    private static void close(final File file, final Throwable failure) {
+        if (null == file) {
+            return;
+        }
+        if (null == failure) {
+            file.close();
+            return;
+        }
+        try {
+            file.close();
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * @return the offset the last upload resumed at, or 0 if it started from the beginning
+     */
+    long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     * @return the offset up to which all writes have been acknowledged by the server
+     */
+    long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Compare the bytes just before the offset in the remote file with the payload.
+     *
+     * @return the offset if the bytes match, or 0 to start over
+     */
+    private long verifiedOffset(final File file, final SmbPayload payload, final long offset) throws IOException {
+        if (offset <= 0) {
+            return 0;
+        }
+        final int size = (int) Math.min(RESUME_CHECK_SIZE, offset);
+        final byte[] remote = new byte[size];
+        int total = 0;
+        while (total < size) {
+            int count = file.read(remote, offset - size + total, total, size - total);
+            if (count <= 0) {
+                return 0;
+            }
+            total += count;
+        }
+        final byte[] local = new byte[size];
+        final InputStream input = payload.openStream(offset - size);
+        try {
+            if (fill(input, local) != size) {
+                return 0;
+            }
+        } finally {
+            input.close();
+        }
+        return Arrays.equals(remote, local) ? offset : 0;
+    }
+
+    private static File openForResume(final DiskShare share, final String path) {
+        return share.openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_READ, AccessMask.GENERIC_WRITE),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_WRITE),
+                SMB2CreateDisposition.FILE_OPEN,
+                EnumSet.noneOf(SMB2CreateOptions.class)
+        );
+    }
+
+    static File openForWrite(final DiskShare share, final String path) {
+        return share.openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_WRITE),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_WRITE),
+                SMB2CreateDisposition.FILE_OVERWRITE_IF,
+                EnumSet.noneOf(SMB2CreateOptions.class)
+        );
+    }
+
+    /**
+     * Write the stream into the file starting at the given offset.
+     *
+     * @return the offset after the last byte written
+     */
+    private long write(
+            final DiskShare share,
+            final File file,
+            final InputStream input,
+            final long length,
+            final long startOffset,
+            final SmbTransferScheduler.Ticket ticket
+    ) throws IOException, InterruptedException
+    {
+        final Session session = share.getTreeConnect().getSession();
+        final Connection connection = session.getConnection();
+        final NegotiatedProtocol protocol = connection.getNegotiatedProtocol();
+        final long timeout = connection.getConfig().getWriteTimeout();
+
+        int chunkSize = Math.min(bufferSize, protocol.getMaxWriteSize());
+        // Don't allocate a full sized buffer for a small script
+        if (length >= 0 && length < chunkSize) {
+            chunkSize = (int) Math.max(1, length);
+        }
+        // The request is serialized while it is sent, so the buffer can be refilled as soon as send returns
+        final byte[] buffer = new byte[chunkSize];
+        final Deque<PendingWrite> inFlight = new ArrayDeque<PendingWrite>();
+        int window = maxOutstanding;
+        long offset = startOffset;
+        int count;
+        while ((count = fill(input, buffer)) > 0) {
+            if (null != ticket) {
+                ticket.acquire(count);
+            }
+            final ArrayByteChunkProvider provider = new ArrayByteChunkProvider(buffer, 0, count, offset);
+            while (provider.isAvailable()) {
+                while (inFlight.size() >= window) {
+                    if (complete(inFlight.poll(), timeout)) {
+                        window = Math.min(maxOutstanding, window + 1);
+                    }
+                }
+                final long start = provider.getOffset();
+                final SMB2WriteRequest request = new SMB2WriteRequest(
+                        protocol.getDialect(),
+                        file.getFileId(),
+                        session.getSessionId(),
+                        share.getTreeConnect().getTreeId(),
+                        provider,
+                        chunkSize
+                );
+                final Future<SMB2WriteResponse> response = session.send(request);
+                final int sent = (int) (provider.getOffset() - start);
+                final boolean creditStarved =
+                        request.getCreditsAssigned() * CREDIT_PAYLOAD_SIZE < request.getMaxPayloadSize();
+                if (creditStarved) {
+                    window = Math.max(1, window / 2);
+                }
+                inFlight.add(new PendingWrite(response, start, sent, !creditStarved));
+            }
+            offset += count;
+        }
+        while (!inFlight.isEmpty()) {
+            complete(inFlight.poll(), timeout);
+        }
+        return offset;
+    }
+
+    /**
+     * Wait for a write response and check it.
+     *
+     * @return true if the request had been granted all the credits it asked for
+     */
+    private boolean complete(final PendingWrite pending, final long timeout) throws TransportException {
+        final SMB2WriteResponse response = Futures.get(pending.response, timeout, TimeUnit.MILLISECONDS,
+                TransportException.Wrapper);
+        if (!response.getHeader().getStatus().isSuccess()) {
+            throw new SMBApiException(response.getHeader(), "Write failed at offset " + pending.offset);
+        }
+        if (response.getBytesWritten() != pending.length) {
+            throw new SMBApiException(response.getHeader(), "Short write at offset " + pending.offset + ": "
+                    + response.getBytesWritten() + " of " + pending.length + " bytes written");
+        }
+        // Responses are completed in the order the requests were sent
+        acknowledged = pending.offset + pending.length;
+        return pending.fullCredits;
+    }
+
+    /**
+     * Read until the buffer is full or the stream ends, so that every write request carries a full buffer.
+     */
+    static int fill(final InputStream input, final byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int count = input.read(buffer, total, buffer.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static class PendingWrite {
+        private final Future<SMB2WriteResponse> response;
+        private final long offset;
+        private final int length;
+        private final boolean fullCredits;
+
+        PendingWrite(
+                final Future<SMB2WriteResponse> response,
+                final long offset,
+                final int length,
+                final boolean fullCredits
+        )
+        {
+            this.response = response;
+            this.offset = offset;
+            this.length = length;
+            this.fullCredits = fullCredits;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SmbVerifier checks that a remote file has the content of the payload uploaded to it.
+ * <p>
+ * The SHA-256 digest of the payload is computed by {@link SmbUploader} while it is sent, so verifying a copy does
+ * not read the local content a second time. The remote file is read back over the same share, with up to
+ * maxOutstanding SMB2 READ requests in flight on one file handle, and digested in order as the responses arrive.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+class SmbVerifier {
+    private static final int CREDIT_PAYLOAD_SIZE = SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+    private final int bufferSize;
+    private final int maxOutstanding;
+
+    /**
+     * @param bufferSize     the read chunk size, capped at the maximum read size negotiated with the server
+     * @param maxOutstanding the maximum number of read requests in flight, 1 to read sequentially
+     */
+    SmbVerifier(final int bufferSize, final int maxOutstanding) {
+        this.bufferSize = bufferSize;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+    }
+
+    /**
+     * Compare the digest of the remote file with the digest of the payload.
+     *
+     * @return the hex encoded SHA-256 digest of the verified content
+     *
+     * @throws IOException if the remote content does not match the payload
+     */
+    String verify(final DiskShare share, final String path, final SmbPayload payload) throws IOException {
+        // Known from the upload, unless it resumed; then the local content is digested here
+        final String expected = payload.getSha256();
+        final String actual = digest(share, path);
+        if (!expected.equals(actual)) {
+            throw new IOException("Verification of '" + path + "' failed: SHA-256 of the remote file is " + actual
+                    + ", expected " + expected);
+        }
+        return actual;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 digest of the remote file
+     */
+    String digest(final DiskShare share, final String path) throws IOException {
+        final MessageDigest digest = newDigest();
+        final File file = share.openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_READ),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
+                SMB2CreateDisposition.FILE_OPEN,
+                EnumSet.noneOf(SMB2CreateOptions.class)
+        );
+        try {
+            final long length = file.getFileInformation().getStandardInformation().getEndOfFile();
+            final Session session = share.getTreeConnect().getSession();
+            final Connection connection = session.getConnection();
+            final NegotiatedProtocol protocol = connection.getNegotiatedProtocol();
+            final long timeout = connection.getConfig().getReadTimeout();
+            // smbj asks for whole credits worth of data, so smaller chunks would be answered with more than needed
+            final int credits = Math.max(1, (bufferSize + CREDIT_PAYLOAD_SIZE - 1) / CREDIT_PAYLOAD_SIZE);
+            final int chunkSize = Math.max(1, Math.min(credits * CREDIT_PAYLOAD_SIZE, protocol.getMaxReadSize()));
+
+            final Deque<PendingRead> inFlight = new ArrayDeque<PendingRead>();
+            long requested = 0;
+            while (requested < length || !inFlight.isEmpty()) {
+                while (requested < length && inFlight.size() < maxOutstanding) {
+                    final int size = (int) Math.min(chunkSize, length - requested);
+                    inFlight.add(new PendingRead(read(share, session, protocol, file, requested, size),
+                            requested, size));
+                    requested += size;
+                }
+                final PendingRead pending = inFlight.poll();
+                int received = receive(pending.response, pending.offset, pending.length, timeout, digest);
+                // A request granted fewer credits than it asked for is answered short, read the rest in turn
+                while (received < pending.length) {
+                    final long offset = pending.offset + received;
+                    final int count = receive(read(share, session, protocol, file, offset, pending.length - received),
+                            offset, pending.length - received, timeout, digest);
+                    if (count <= 0) {
+                        throw new IOException("Verification of '" + path + "' failed: remote file ended at offset "
+                                + offset + " of " + length);
+                    }
+                    received += count;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return SmbPayload.hex(digest.digest());
+    }
+
+    private static Future<SMB2ReadResponse> read(
+            final DiskShare share,
+            final Session session,
+            final NegotiatedProtocol protocol,
+            final File file,
+            final long offset,
+            final int length
+    ) throws TransportException
+    {
+        return session.send(new SMB2ReadRequest(protocol.getDialect(), file.getFileId(), session.getSessionId(),
+                share.getTreeConnect().getTreeId(), offset, length));
+    }
+
+    /**
+     * Wait for a read response and add up to length bytes of its data to the digest.
+     *
+     * @return the number of bytes digested
+     */
+    private static int receive(
+            final Future<SMB2ReadResponse> future,
+            final long offset,
+            final int length,
+            final long timeout,
+            final MessageDigest digest
+    ) throws TransportException
+    {
+        final SMB2ReadResponse response = Futures.get(future, timeout, TimeUnit.MILLISECONDS,
+                TransportException.Wrapper);
+        if (!response.getHeader().getStatus().isSuccess()) {
+            throw new SMBApiException(response.getHeader(), "Read failed at offset " + offset);
+        }
+        final int count = Math.min(length, response.getDataLength());
+        digest.update(response.getData(), 0, count);
+        return count;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class PendingRead {
+        private final Future<SMB2ReadResponse> response;
+        private final long offset;
+        private final int length;
+
+        PendingRead(final Future<SMB2ReadResponse> response, final long offset, final int length) {
+            this.response = response;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of the {@link FakeSmbServer} the benchmarks and tests run against, driven through the smbj client.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class FakeSmbServerTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+
+    private Connection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != connection) {
+            connection.close(true);
+        }
+    }
+
+    private DiskShare connect(final FakeSmbServer server) throws IOException {
+        connection = new SMBClient(server.config()).connect(HOSTNAME);
+        return (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+    }
+
+    private static void write(final DiskShare share, final String path, final byte[] content) {
+        final File file = SmbUploader.openForWrite(share, path);
+        try {
+            file.write(content, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void keepsDirectoryTreeAndFileSizes() throws Exception {
+        final FakeSmbServer server = new FakeSmbServer(0);
+        final DiskShare share = connect(server);
+        share.mkdir("Temp");
+        share.mkdir("Temp\\rundeck");
+        write(share, "Temp\\rundeck\\script.ps1", new byte[1000]);
+
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp\\RUNDECK"));
+        assertFalse(server.isDirectory(HOSTNAME, SHARE, "Temp\\rundeck\\script.ps1"));
+        assertEquals(1000, server.fileSize(HOSTNAME, SHARE, "Temp\\rundeck\\script.ps1"));
+        assertEquals(-1, server.fileSize(HOSTNAME, SHARE, "Temp\\rundeck"));
+        // Content is only kept when asked for
+        assertNull(server.content(HOSTNAME, SHARE, "Temp\\rundeck\\script.ps1"));
+        assertEquals(1, server.getConnects());
+        assertEquals(1, server.getSessionSetups());
+        assertEquals(1, server.getWrites());
+    }
+
+    @Test
+    public void readsBackKeptContent() throws Exception {
+        final FakeSmbServer server = new FakeSmbServer(0, true);
+        final DiskShare share = connect(server);
+        final byte[] content = SmbUploaderTest.randomBytes(5000);
+        write(share, "script.ps1", content);
+
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "script.ps1"));
+        final byte[] read = new byte[content.length];
+        final File file = share.openFile("script.ps1", EnumSet.of(AccessMask.GENERIC_READ), null, null,
+                SMB2CreateDisposition.FILE_OPEN, null);
+        try {
+            assertEquals(content.length, file.read(read, 0));
+            assertEquals(content.length, file.getFileInformation().getStandardInformation().getEndOfFile());
+        } finally {
+            file.close();
+        }
+        assertArrayEquals(content, read);
+    }
+
+    @Test
+    public void rejectsFileInMissingDirectory() throws Exception {
+        final DiskShare share = connect(new FakeSmbServer(0));
+        try {
+            write(share, "missing\\script.ps1", new byte[10]);
+            fail("Expected the missing directory to be reported");
+        } catch (SMBApiException e) {
+            assertEquals(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND, e.getStatus());
+        }
+    }
+
+    @Test
+    public void delaysResponsesByLatency() throws Exception {
+        final DiskShare share = connect(new FakeSmbServer(20000));
+        final long start = System.nanoTime();
+        share.mkdir("Temp");
+
+        assertTrue(System.nanoTime() - start >= 20000000);
+    }
+
+    @Test
+    public void clearRemovesEverything() throws Exception {
+        final FakeSmbServer server = new FakeSmbServer(0);
+        final DiskShare share = connect(server);
+        share.mkdir("Temp");
+        server.clear();
+
+        assertFalse(server.isDirectory(HOSTNAME, SHARE, "Temp"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbBackoff}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbBackoffTest {
+
+    private static void assertBetween(final long min, final long max, final long delay) {
+        assertTrue(delay + " not in " + min + ".." + max, delay >= min && delay <= max);
+    }
+
+    @Test
+    public void growsByMultiplierWithJitter() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, SmbBackoff.delay(0, 1000, 2, 60000));
+            assertBetween(1000, 2000, SmbBackoff.delay(1, 1000, 2, 60000));
+            assertBetween(4000, 8000, SmbBackoff.delay(3, 1000, 2, 60000));
+        }
+    }
+
+    @Test
+    public void isCappedAtMaximum() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(5000, 10000, SmbBackoff.delay(20, 1000, 2, 10000));
+            // A huge retry count doesn't overflow
+            assertBetween(5000, 10000, SmbBackoff.delay(Integer.MAX_VALUE, 1000, 10, 10000));
+        }
+    }
+
+    @Test
+    public void multiplierOfOneKeepsDelay() {
+        assertBetween(1000, 2000, SmbBackoff.delay(5, 2000, 1, 60000));
+    }
+
+    @Test
+    public void baseAboveMaximumIsCapped() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, SmbBackoff.delay(0, 2000, 2, 1000));
+            assertBetween(500, 1000, SmbBackoff.delay(3, 2000, 2, 1000));
+        }
+        assertEquals(0, SmbBackoff.delay(0, 2000, 2, 0));
+    }
+
+    @Test
+    public void jitterIsSpread() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            final long delay = SmbBackoff.delay(0, 1000, 2, 60000);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(max - min > 250);
+    }
+
+    @Test
+    public void zeroDelayStaysZero() {
+        assertEquals(0, SmbBackoff.delay(3, 0, 2, 60000));
+        assertEquals(0, SmbBackoff.delay(0, -5, 2, 60000));
+    }
+}
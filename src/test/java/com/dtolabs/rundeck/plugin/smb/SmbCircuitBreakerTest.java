@@ -0,0 +1,143 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2Header;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbCircuitBreaker} and of how failures are classified for it.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbCircuitBreakerTest {
+    private static final long COOLDOWN = 60000;
+
+    private static SMBApiException apiException(final NtStatus status) {
+        final SMB2Header header = new SMB2Header();
+        header.setStatus(status);
+        return new SMBApiException(header, "Create failed");
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final SmbCircuitBreaker breaker = new SmbCircuitBreaker();
+        assertFalse(breaker.failed("host1", 3, COOLDOWN));
+        assertFalse(breaker.failed("host1", 3, COOLDOWN));
+        assertTrue(breaker.allow("host1", COOLDOWN));
+        assertTrue(breaker.failed("HOST1", 3, COOLDOWN));
+
+        assertFalse(breaker.allow("host1", COOLDOWN));
+        assertTrue(breaker.getRetryAfter("host1") > 0);
+        // Other hosts are not affected
+        assertTrue(breaker.allow("host2", COOLDOWN));
+        assertEquals(0, breaker.getRetryAfter("host2"));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        final SmbCircuitBreaker breaker = new SmbCircuitBreaker();
+        breaker.failed("host1", 2, COOLDOWN);
+        breaker.succeeded("host1");
+
+        assertFalse(breaker.failed("host1", 2, COOLDOWN));
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() {
+        final SmbCircuitBreaker breaker = new SmbCircuitBreaker();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(breaker.failed("host1", 0, COOLDOWN));
+        }
+        assertTrue(breaker.allow("host1", COOLDOWN));
+    }
+
+    @Test
+    public void letsSingleProbeThroughAfterCooldown() throws Exception {
+        final SmbCircuitBreaker breaker = new SmbCircuitBreaker();
+        breaker.failed("host1", 1, 20);
+        Thread.sleep(50);
+
+        assertTrue(breaker.allow("host1", COOLDOWN));
+        assertFalse(breaker.allow("host1", COOLDOWN));
+        // A failed probe keeps it open, a successful one closes it
+        assertTrue(breaker.failed("host1", 1, COOLDOWN));
+        breaker.succeeded("host1");
+        assertTrue(breaker.allow("host1", COOLDOWN));
+    }
+
+    @Test
+    public void classifiesTransportFailuresByCause() {
+        assertTrue(SmbCircuitBreaker.isTransportFailure(new TransportException("Connection reset")));
+        assertTrue(SmbCircuitBreaker.isTransportFailure(
+                new SMBRuntimeException(new TransportException("Connection reset"))));
+        assertTrue(SmbCircuitBreaker.isTransportFailure(
+                new ExecutionException(new IOException(new SocketTimeoutException("Read timed out")))));
+        assertTrue(SmbCircuitBreaker.isTransportFailure(new ConnectException("Connection refused")));
+
+        assertFalse(SmbCircuitBreaker.isTransportFailure(apiException(NtStatus.STATUS_ACCESS_DENIED)));
+        assertFalse(SmbCircuitBreaker.isTransportFailure(new IOException("Disk full")));
+        assertFalse(SmbCircuitBreaker.isTransportFailure(new IllegalStateException()));
+    }
+
+    @Test
+    public void interruptionIsNotTransportFailure() {
+        final Exception interrupted = new SMBRuntimeException(
+                new TransportException(new InterruptedException()));
+
+        assertTrue(SmbCircuitBreaker.isInterruption(interrupted));
+        assertFalse(SmbCircuitBreaker.isTransportFailure(interrupted));
+        assertFalse(SmbCircuitBreaker.isInterruption(new TransportException("Connection reset")));
+    }
+
+    @Test
+    public void classifiesCycleInCauses() {
+        final IOException first = new IOException("first");
+        final IOException second = new IOException("second", first);
+        first.initCause(second);
+
+        assertFalse(SmbCircuitBreaker.isTransportFailure(first));
+    }
+
+    @Test
+    public void classifiesFailuresOfDroppedConnection() throws Exception {
+        final FakeSmbServer server = new FakeSmbServer(0);
+        final Connection connection = new SMBClient(server.config()).connect("127.0.0.1");
+        final SmbCircuitBreaker breaker = new SmbCircuitBreaker();
+        try {
+            final DiskShare share = (DiskShare) connection.authenticate(new AuthenticationContext("rundeck",
+                    "secret".toCharArray(), "WORKGROUP")).connectShare("C$");
+            final File file = SmbUploader.openForWrite(share, "script.ps1");
+            server.dropConnectionAfterWrites(0);
+            try {
+                file.write(new byte[1000], 0);
+                fail("Expected the dropped connection to fail the write");
+            } catch (Exception e) {
+                // Reported wrapped, and still counted against the host
+                assertTrue(e.toString(), e instanceof SMBRuntimeException);
+                assertTrue(e.toString(), SmbCircuitBreaker.isTransportFailure(e));
+                assertTrue(breaker.failed("127.0.0.1", 1, COOLDOWN));
+            }
+        } finally {
+            connection.close(true);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.smbj.SmbConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbClientSettings}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbClientSettingsTest {
+
+    /**
+     * Load a class of the plugin in a class loader without the Rundeck classes, as in the benchmark build.
+     */
+    static Class<?> loadWithoutRundeck(final String name) throws ClassNotFoundException {
+        return Class.forName(name, true, new WithoutRundeckClassLoader());
+    }
+
+    @Test
+    public void parsesDialectsInOrderWithoutDuplicates() {
+        assertEquals(Arrays.asList(SMB2Dialect.SMB_3_0, SMB2Dialect.SMB_2_1),
+                SmbClientSettings.parseDialects(" 3.0, 2.1,,3.0 "));
+    }
+
+    @Test
+    public void rejectsUnknownDialect() {
+        try {
+            SmbClientSettings.parseDialects("2.1,1.0");
+            fail("Expected the dialect to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("1.0"));
+        }
+    }
+
+    @Test
+    public void rejectsEmptyDialects() {
+        try {
+            SmbClientSettings.parseDialects(" , ");
+            fail("Expected the empty list to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void keyDiffersForDifferentSettings() {
+        final SmbClientSettings defaults = SmbClientSettings.defaults();
+
+        assertEquals(defaults.key(), SmbClientSettings.defaults().key());
+        assertNotEquals(defaults.key(), new SmbClientSettings(1024 * 1024, 1024 * 1024, 1024 * 1024, 60, 0,
+                SmbClientSettings.parseDialects("2.1,2.0.2"), true).key());
+        assertNotEquals(defaults.key(), new SmbClientSettings(1024 * 1024, 1024 * 1024, 1024 * 1024, 30, 0,
+                SmbClientSettings.parseDialects("2.1,2.0.2"), false).key());
+    }
+
+    @Test
+    public void appliesSettingsToConfig() {
+        final SmbConfig config = new SmbClientSettings(65536, 131072, 32768, 30, 10,
+                SmbClientSettings.parseDialects("3.0"), true).toConfig();
+
+        assertEquals(65536, config.getReadBufferSize());
+        assertEquals(131072, config.getWriteBufferSize());
+        assertEquals(32768, config.getTransactBufferSize());
+        assertEquals(TimeUnit.SECONDS.toMillis(30), config.getWriteTimeout());
+        assertEquals(TimeUnit.SECONDS.toMillis(10), config.getSoTimeout());
+        assertEquals(EnumSet.of(SMB2Dialect.SMB_3_0), config.getSupportedDialects());
+        assertTrue(config.isSigningRequired());
+    }
+
+    @Test
+    public void defaultsNeedNoRundeckClasses() throws Exception {
+        try {
+            loadWithoutRundeck("com.dtolabs.rundeck.plugin.smb.SmbFileCopier");
+            fail("Expected the Rundeck classes to be missing");
+        } catch (NoClassDefFoundError e) {
+            // expected
+        }
+        final Class<?> type = loadWithoutRundeck(SmbClientSettings.class.getName());
+        assertFalse(SmbClientSettings.class.equals(type));
+        final Method defaults = type.getDeclaredMethod("defaults");
+        defaults.setAccessible(true);
+        assertNotNull(defaults.invoke(null));
+    }
+
+    /**
+     * Defines the classes of the plugin itself, and refuses the Rundeck classes.
+     */
+    private static class WithoutRundeckClassLoader extends ClassLoader {
+        private static final String PLUGIN_PACKAGE = "com.dtolabs.rundeck.plugin.smb.";
+
+        WithoutRundeckClassLoader() {
+            super(SmbClientSettingsTest.class.getClassLoader());
+        }
+
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                if (name.startsWith("com.dtolabs.rundeck.") && !name.startsWith(PLUGIN_PACKAGE)
+                        || name.startsWith("org.rundeck.")) {
+                    throw new ClassNotFoundException(name);
+                }
+                if (!name.startsWith(PLUGIN_PACKAGE)) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> type = findLoadedClass(name);
+                if (null == type) {
+                    final byte[] bytes = read(name.replace('.', '/') + ".class");
+                    type = defineClass(name, bytes, 0, bytes.length);
+                }
+                return type;
+            }
+        }
+
+        private byte[] read(final String resource) throws ClassNotFoundException {
+            final InputStream input = getParent().getResourceAsStream(resource);
+            if (null == input) {
+                throw new ClassNotFoundException(resource);
+            }
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = input.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+                input.close();
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(resource, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.SMBClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbConnectionPool} against the in-process {@link FakeSmbServer}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbConnectionPoolTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private FakeSmbServer server;
+    private SmbClientSettings clientSettings;
+
+    @Before
+    public void setUp() {
+        server = new FakeSmbServer(0);
+        clientSettings = SmbClientSettings.defaults();
+    }
+
+    private SmbConnectionPool newPool(final long validateAfter, final long maxSessionAge) {
+        return new SmbConnectionPool(validateAfter, maxSessionAge) {
+            SMBClient newClient(final SmbClientSettings settings) {
+                return new SMBClient(settings.toConfig(server.configBuilder()));
+            }
+        };
+    }
+
+    private SmbConnectionPool.PooledSession acquire(
+            final SmbConnectionPool pool,
+            final String password,
+            final int maxPerHost
+    ) throws Exception
+    {
+        return pool.acquire(HOSTNAME, "WORKGROUP", "rundeck", password.toCharArray(), clientSettings, maxPerHost,
+                IDLE_TIMEOUT, new SmbCopyMetrics(HOSTNAME));
+    }
+
+    @Test
+    public void reusesIdleSessionForSameCredentials() throws Exception {
+        final SmbConnectionPool pool = newPool(60000, 3600000);
+        final SmbConnectionPool.PooledSession first = acquire(pool, "secret", 2);
+        assertFalse(first.isReused());
+        pool.release(first, IDLE_TIMEOUT);
+
+        final SmbConnectionPool.PooledSession second = acquire(pool, "secret", 2);
+        assertTrue(second.isReused());
+        assertEquals(1, server.getSessionSetups());
+        pool.invalidate(second);
+    }
+
+    @Test
+    public void doesNotReuseSessionAuthenticatedWithAnotherPassword() throws Exception {
+        final SmbConnectionPool pool = newPool(60000, 3600000);
+        pool.release(acquire(pool, "old-secret", 2), IDLE_TIMEOUT);
+
+        final SmbConnectionPool.PooledSession session = acquire(pool, "new-secret", 2);
+        assertFalse(session.isReused());
+        assertEquals(2, server.getSessionSetups());
+        pool.invalidate(session);
+    }
+
+    @Test
+    public void keyHoldsFingerprintRatherThanPassword() {
+        final String key = SmbConnectionPool.key(HOSTNAME, "WORKGROUP", "rundeck", "secret".toCharArray(),
+                clientSettings);
+        assertFalse(key.contains("secret"));
+        assertEquals(key, SmbConnectionPool.key(HOSTNAME, "workgroup", "rundeck", "secret".toCharArray(),
+                clientSettings));
+        assertNotEquals(key, SmbConnectionPool.key(HOSTNAME, "WORKGROUP", "rundeck", "Secret".toCharArray(),
+                clientSettings));
+    }
+
+    @Test
+    public void validatesIdleSessionWithEchoBeforeReuse() throws Exception {
+        final SmbConnectionPool pool = newPool(0, 3600000);
+        pool.release(acquire(pool, "secret", 2), IDLE_TIMEOUT);
+
+        final SmbConnectionPool.PooledSession session = acquire(pool, "secret", 2);
+        assertTrue(session.isReused());
+        pool.invalidate(session);
+    }
+
+    @Test
+    public void replacesSessionWhoseConnectionDropped() throws Exception {
+        final SmbConnectionPool pool = newPool(0, 3600000);
+        final SmbConnectionPool.PooledSession first = acquire(pool, "secret", 2);
+        pool.release(first, IDLE_TIMEOUT);
+        first.getConnection().close(true);
+
+        final SmbConnectionPool.PooledSession second = acquire(pool, "secret", 2);
+        assertFalse(second.isReused());
+        assertEquals(2, server.getConnects());
+        pool.invalidate(second);
+    }
+
+    @Test
+    public void authenticatesAgainAfterMaximumAge() throws Exception {
+        final SmbConnectionPool pool = newPool(60000, 0);
+        pool.release(acquire(pool, "secret", 2), IDLE_TIMEOUT);
+
+        final SmbConnectionPool.PooledSession session = acquire(pool, "secret", 2);
+        assertFalse(session.isReused());
+        assertEquals(2, server.getSessionSetups());
+        pool.invalidate(session);
+    }
+
+    @Test
+    public void reportsSessionExpiredByServer() throws Exception {
+        final SmbConnectionPool pool = newPool(60000, 3600000);
+        pool.release(acquire(pool, "secret", 2), IDLE_TIMEOUT);
+        server.expireSessions();
+
+        final SmbConnectionPool.PooledSession session = acquire(pool, "secret", 2);
+        try {
+            session.connectShare("C$");
+            fail("Expected the expired session to be rejected");
+        } catch (SMBApiException e) {
+            assertTrue(SmbConnectionPool.isSessionExpired(e));
+        } finally {
+            pool.invalidate(session);
+        }
+    }
+
+    @Test
+    public void hostLimitFollowsConfiguredValue() throws Exception {
+        final SmbConnectionPool pool = newPool(60000, 3600000);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final SmbConnectionPool.PooledSession first = acquire(pool, "secret", 1);
+            // Raised from 1 to 2: a second session is leased without waiting for the first
+            final SmbConnectionPool.PooledSession second = executor.submit(leaseTask(pool, 2))
+                    .get(10, TimeUnit.SECONDS);
+            assertNotNull(second);
+
+            // Lowered back to 1: with two leased, a third waits until both are back
+            final Future<SmbConnectionPool.PooledSession> third = executor.submit(leaseTask(pool, 1));
+            pool.invalidate(first);
+            try {
+                third.get(300, TimeUnit.MILLISECONDS);
+                fail("Expected the lease to wait for the lowered host limit");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            pool.invalidate(second);
+            pool.invalidate(third.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<SmbConnectionPool.PooledSession> leaseTask(final SmbConnectionPool pool, final int maxPerHost) {
+        return new Callable<SmbConnectionPool.PooledSession>() {
+            public SmbConnectionPool.PooledSession call() throws Exception {
+                return acquire(pool, "secret", maxPerHost);
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbCopyMetrics} and the per host totals it is recorded into.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbCopyMetricsTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void accumulatesTimePerPhase() {
+        final SmbCopyMetrics metrics = new SmbCopyMetrics("metrics-phases");
+        metrics.stop(SmbCopyMetrics.Phase.CONNECT, SmbCopyMetrics.start() - SECOND);
+        metrics.stop(SmbCopyMetrics.Phase.CONNECT, SmbCopyMetrics.start() - SECOND);
+
+        assertTrue(metrics.getNanos(SmbCopyMetrics.Phase.CONNECT) >= 2 * SECOND);
+        assertTrue(metrics.getNanos(SmbCopyMetrics.Phase.CONNECT) < 3 * SECOND);
+        assertEquals(0, metrics.getNanos(SmbCopyMetrics.Phase.TRANSFER));
+    }
+
+    @Test
+    public void rateIsOverTransferPhase() {
+        final SmbCopyMetrics metrics = new SmbCopyMetrics("metrics-rate");
+        assertEquals(0, metrics.getBytesPerSecond());
+
+        metrics.addBytes(3000000);
+        metrics.addBytes(1000000);
+        metrics.stop(SmbCopyMetrics.Phase.TRANSFER, SmbCopyMetrics.start() - 2 * SECOND);
+        // Time in other phases does not lower the rate
+        metrics.stop(SmbCopyMetrics.Phase.CONNECT, SmbCopyMetrics.start() - 10 * SECOND);
+
+        assertEquals(4000000, metrics.getBytes());
+        assertTrue(metrics.getBytesPerSecond() <= 2000000);
+        assertTrue(metrics.getBytesPerSecond() > 1900000);
+    }
+
+    @Test
+    public void summaryOfSuccessfulCopy() {
+        final SmbCopyMetrics metrics = new SmbCopyMetrics("metrics-ok");
+        metrics.setReused(true);
+        metrics.addBytes(42);
+        metrics.retried();
+        metrics.finish(false);
+
+        final String summary = metrics.summary();
+        assertTrue(summary, summary.startsWith("smb-copy-metrics host=metrics-ok status=ok session=reused"
+                + " bytes=42 "));
+        assertTrue(summary, summary.contains(" retries=1 "));
+        for (SmbCopyMetrics.Phase phase : SmbCopyMetrics.Phase.values()) {
+            assertTrue(summary, summary.contains(" " + phase.getLabel() + "_ms="));
+        }
+    }
+
+    @Test
+    public void summaryReportsFailedBeforeSkipped() {
+        final SmbCopyMetrics skipped = new SmbCopyMetrics("metrics-skipped");
+        skipped.setSkipped(true);
+        skipped.finish(false);
+        assertTrue(skipped.summary().contains(" status=skipped session=new "));
+
+        final SmbCopyMetrics failed = new SmbCopyMetrics("metrics-skipped");
+        failed.setSkipped(true);
+        failed.finish(true);
+        assertTrue(failed.summary().contains(" status=failed "));
+    }
+
+    @Test
+    public void finishRecordsIntoHostTotals() {
+        final SmbHostStats stats = SmbHostStats.forHost("Metrics-Totals");
+        assertSame(stats, SmbHostStats.forHost("metrics-totals"));
+        stats.reset();
+
+        final SmbCopyMetrics first = new SmbCopyMetrics("metrics-totals");
+        first.addBytes(1000);
+        first.retried();
+        first.stop(SmbCopyMetrics.Phase.TRANSFER, SmbCopyMetrics.start() - SECOND);
+        first.finish(false);
+        final SmbCopyMetrics second = new SmbCopyMetrics("METRICS-TOTALS");
+        second.setSkipped(true);
+        second.finish(false);
+        final SmbCopyMetrics third = new SmbCopyMetrics("metrics-totals");
+        third.addBytes(500);
+        third.finish(true);
+
+        assertEquals(3, stats.getCopies());
+        assertEquals(1, stats.getFailedCopies());
+        assertEquals(1, stats.getSkippedCopies());
+        assertEquals(1, stats.getRetries());
+        assertEquals(1500, stats.getBytesTransferred());
+        assertTrue(stats.getTotalTransferMillis() >= 1000);
+        assertTrue(stats.getAverageBytesPerSecond() > 0);
+
+        stats.reset();
+        assertEquals(0, stats.getCopies());
+        assertEquals(0, stats.getBytesTransferred());
+        assertEquals(0, stats.getTotalTransferMillis());
+    }
+
+    @Test
+    public void hostTotalsAreRegisteredWithJmx() throws Exception {
+        SmbHostStats.forHost("metrics-jmx");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(SmbHostStats.DOMAIN + ":type=SmbHostStats,host="
+                + ObjectName.quote("metrics-jmx"));
+        assertTrue(server.isRegistered(name));
+        assertEquals("metrics-jmx", server.getAttribute(name, "Hostname"));
+    }
+
+    @Test
+    public void leastRecentlyUsedHostIsUnregistered() throws Exception {
+        final Map<String, SmbHostStats> hosts = SmbHostStats.hosts(2);
+        final SmbHostStats first = SmbHostStats.forHost(hosts, "metrics-lru-1");
+        SmbHostStats.forHost(hosts, "metrics-lru-2");
+        // Used again, so the second is now the least recently used
+        SmbHostStats.forHost(hosts, "metrics-lru-1");
+        SmbHostStats.forHost(hosts, "metrics-lru-3");
+
+        assertEquals(2, hosts.size());
+        assertTrue(isRegistered("metrics-lru-1"));
+        assertFalse(isRegistered("metrics-lru-2"));
+        assertTrue(isRegistered("metrics-lru-3"));
+        assertSame(first, SmbHostStats.forHost(hosts, "metrics-lru-1"));
+
+        // Copied to again, the dropped host starts over with a new MBean
+        final SmbHostStats second = SmbHostStats.forHost(hosts, "metrics-lru-2");
+        assertTrue(isRegistered("metrics-lru-2"));
+        assertEquals(0, second.getCopies());
+        assertFalse(isRegistered("metrics-lru-3"));
+    }
+
+    private static boolean isRegistered(final String hostname) throws Exception {
+        return ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(SmbHostStats.DOMAIN
+                + ":type=SmbHostStats,host=" + ObjectName.quote(hostname)));
+    }
+}
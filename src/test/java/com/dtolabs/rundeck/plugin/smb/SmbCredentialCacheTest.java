@@ -0,0 +1,140 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Tests of {@link SmbCredentialCache}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbCredentialCacheTest {
+    private static final String PROJECT = "project";
+    private static final String USER = "alice";
+    private static final String PATH = "keys/smb/password";
+    private static final long TTL = 60000;
+
+    private static Map<String, String> attributes(final String hostname) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("hostname", hostname);
+        attributes.put("smb-user", "rundeck");
+        return attributes;
+    }
+
+    @Test
+    public void returnsCopyOfSecret() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        final char[] password = "secret".toCharArray();
+        cache.putSecret(PROJECT, USER, PATH, password, TTL);
+        // Neither the caller's array nor a returned copy is the cached one
+        password[0] = 'x';
+        cache.getSecret(PROJECT, USER, PATH)[1] = 'x';
+
+        assertArrayEquals("secret".toCharArray(), cache.getSecret(PROJECT, USER, PATH));
+    }
+
+    @Test
+    public void keysSecretsByProject() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), TTL);
+
+        assertNull(cache.getSecret("other", USER, PATH));
+        assertNull(cache.getSecret(PROJECT, USER, "keys/smb/other"));
+    }
+
+    @Test
+    public void keysSecretsByUser() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), TTL);
+
+        // Another user's job reads the key storage itself, which checks that the user may read the key
+        assertNull(cache.getSecret(PROJECT, "bob", PATH));
+        cache.invalidateSecret(PROJECT, "bob", PATH);
+        assertArrayEquals("secret".toCharArray(), cache.getSecret(PROJECT, USER, PATH));
+    }
+
+    @Test
+    public void zeroTtlDisablesCache() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), 0);
+        cache.putNodeSettings(PROJECT, "node1", attributes("host1"), new SmbNodeSettings(), 0);
+
+        assertNull(cache.getSecret(PROJECT, USER, PATH));
+        assertNull(cache.getNodeSettings(PROJECT, "node1", attributes("host1")));
+    }
+
+    @Test
+    public void expiresSecret() throws Exception {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), 20);
+        Thread.sleep(50);
+
+        assertNull(cache.getSecret(PROJECT, USER, PATH));
+    }
+
+    @Test
+    public void evictsExpiredEntries() throws Exception {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), 20);
+        cache.putSecret(PROJECT, USER, "keys/smb/other", "other".toCharArray(), TTL);
+        Thread.sleep(50);
+        cache.evictExpired();
+
+        assertNull(cache.getSecret(PROJECT, USER, PATH));
+        assertArrayEquals("other".toCharArray(), cache.getSecret(PROJECT, USER, "keys/smb/other"));
+    }
+
+    @Test
+    public void invalidatesSecretAfterFailedLogon() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        cache.putSecret(PROJECT, USER, PATH, "secret".toCharArray(), TTL);
+        cache.invalidateSecret(PROJECT, USER, PATH);
+
+        assertNull(cache.getSecret(PROJECT, USER, PATH));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSecret() {
+        final SmbCredentialCache cache = new SmbCredentialCache(2, 10);
+        cache.putSecret(PROJECT, USER, "keys/a", "a".toCharArray(), TTL);
+        cache.putSecret(PROJECT, USER, "keys/b", "b".toCharArray(), TTL);
+        cache.getSecret(PROJECT, USER, "keys/a");
+        cache.putSecret(PROJECT, USER, "keys/c", "c".toCharArray(), TTL);
+
+        assertArrayEquals("a".toCharArray(), cache.getSecret(PROJECT, USER, "keys/a"));
+        assertNull(cache.getSecret(PROJECT, USER, "keys/b"));
+        assertArrayEquals("c".toCharArray(), cache.getSecret(PROJECT, USER, "keys/c"));
+    }
+
+    @Test
+    public void usesNodeSettingsWhileAttributesAreUnchanged() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 10);
+        final SmbNodeSettings settings = new SmbNodeSettings();
+        final Map<String, String> attributes = attributes("host1");
+        cache.putNodeSettings(PROJECT, "node1", attributes, settings, TTL);
+        // The cache keeps its own copy of the attributes
+        attributes.put("smb-user", "admin");
+
+        assertSame(settings, cache.getNodeSettings(PROJECT, "node1", attributes("host1")));
+        assertNull(cache.getNodeSettings("other", "node1", attributes("host1")));
+        assertNull(cache.getNodeSettings(PROJECT, "node1", attributes("host2")));
+        // A change drops the entry
+        assertNull(cache.getNodeSettings(PROJECT, "node1", attributes("host1")));
+    }
+
+    @Test
+    public void boundsNodeSettings() {
+        final SmbCredentialCache cache = new SmbCredentialCache(10, 1);
+        cache.putNodeSettings(PROJECT, "node1", attributes("host1"), new SmbNodeSettings(), TTL);
+        cache.putNodeSettings(PROJECT, "node2", attributes("host2"), new SmbNodeSettings(), TTL);
+
+        assertNull(cache.getNodeSettings(PROJECT, "node1", attributes("host1")));
+    }
+}
@@ -0,0 +1,101 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbDirectoryCache} against the in-process {@link FakeSmbServer}. Once the server's shares are
+ * cleared, a directory is only there again if the cache checked the share rather than trusting its entry.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbDirectoryCacheTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+    private static final long TTL = 60000;
+
+    private FakeSmbServer server;
+    private Connection connection;
+    private DiskShare share;
+    private SmbDirectoryCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSmbServer(0);
+        connection = new SMBClient(server.config()).connect(HOSTNAME);
+        share = (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+        cache = new SmbDirectoryCache(100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.close(true);
+    }
+
+    @Test
+    public void createsMissingParents() {
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck\\job", TTL);
+
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp"));
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp\\rundeck"));
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp\\rundeck\\job"));
+    }
+
+    @Test
+    public void skipsDirectoriesKnownToExist() {
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck", TTL);
+        server.clear();
+
+        cache.mkdirs(share, HOSTNAME, SHARE, "TEMP\\Rundeck", TTL);
+        assertFalse(server.isDirectory(HOSTNAME, SHARE, "temp\\rundeck"));
+    }
+
+    @Test
+    public void checksAgainWithoutTimeToLive() {
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck", 0);
+        server.clear();
+
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck", 0);
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp\\rundeck"));
+    }
+
+    @Test
+    public void checksAgainAfterInvalidate() {
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck", TTL);
+        server.clear();
+        cache.invalidate(HOSTNAME, SHARE, "temp\\rundeck");
+
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp\\rundeck", TTL);
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp"));
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp\\rundeck"));
+    }
+
+    @Test
+    public void keepsEntriesPerHost() {
+        cache.mkdirs(share, "node1", SHARE, "temp", TTL);
+        server.clear();
+
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp", TTL);
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp"));
+    }
+
+    @Test
+    public void toleratesExistingDirectory() {
+        cache.mkdirs(share, HOSTNAME, SHARE, "temp", 0);
+
+        cache.mkdir(share, HOSTNAME, SHARE, "temp", TTL);
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "temp"));
+    }
+}
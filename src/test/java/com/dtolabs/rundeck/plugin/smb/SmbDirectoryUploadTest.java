@@ -0,0 +1,220 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbDirectoryUpload} against the in-process {@link FakeSmbServer}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbDirectoryUploadTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TTL = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSmbServer server;
+    private SMBClient client;
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        server = new FakeSmbServer(0, true);
+        client = new SMBClient(server.configBuilder().withWriteTimeout(2, TimeUnit.SECONDS).build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != connection) {
+            connection.close(true);
+        }
+    }
+
+    private DiskShare connect() throws IOException {
+        if (null != connection) {
+            connection.close(true);
+        }
+        connection = client.connect(HOSTNAME);
+        return (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+    }
+
+    private File write(final String path, final byte[] content) throws IOException {
+        final File file = new File(folder.getRoot(), path.replace('/', File.separatorChar));
+        file.getParentFile().mkdirs();
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private long upload(final SmbDirectoryUpload upload, final DiskShare share) throws Exception {
+        return upload.upload(share, HOSTNAME, SHARE, "Temp\\rundeck", new SmbDirectoryCache(100), TTL, null);
+    }
+
+    @Test
+    public void uploadsTree() throws Exception {
+        final byte[] large = SmbUploaderTest.randomBytes(3 * BUFFER_SIZE + 10);
+        write("large.bin", large);
+        write("lib/a.ps1", "a".getBytes("UTF-8"));
+        write("lib/b.ps1", "b".getBytes("UTF-8"));
+        new File(new File(folder.getRoot(), "lib"), "empty").mkdirs();
+        write("lib/nested/c.ps1", "c".getBytes("UTF-8"));
+
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 4, 2,
+                SmbSync.Mode.OFF, false);
+        assertEquals(4, upload.getFileCount());
+        assertEquals(3, upload.getDirectoryCount());
+
+        assertEquals(large.length + 3, upload(upload, connect()));
+        assertArrayEquals(large, server.content(HOSTNAME, SHARE, "Temp\\rundeck\\large.bin"));
+        assertArrayEquals("c".getBytes("UTF-8"), server.content(HOSTNAME, SHARE, "Temp\\rundeck\\lib\\nested\\c.ps1"));
+        assertTrue(server.isDirectory(HOSTNAME, SHARE, "Temp\\rundeck\\lib\\empty"));
+        assertEquals(0, upload.getSkipped());
+        assertEquals(0, upload.getAcknowledged());
+    }
+
+    @Test
+    public void spreadsSmallFilesOverStreams() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            write("lib/script" + i + ".ps1", ("Write-Host " + i).getBytes("UTF-8"));
+        }
+        // Each request takes a round trip, so that the streams overlap
+        server = new FakeSmbServer(TimeUnit.MILLISECONDS.toMicros(5), true);
+        client = new SMBClient(server.configBuilder().withWriteTimeout(2, TimeUnit.SECONDS).build());
+
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 4, 4,
+                SmbSync.Mode.OFF, false);
+        upload(upload, connect());
+
+        assertTrue(server.getMaxOpenFiles() > 1);
+        assertTrue(server.getMaxOpenFiles() <= 4);
+        for (int i = 0; i < 16; i++) {
+            assertArrayEquals(("Write-Host " + i).getBytes("UTF-8"),
+                    server.content(HOSTNAME, SHARE, "Temp\\rundeck\\lib\\script" + i + ".ps1"));
+        }
+    }
+
+    @Test
+    public void verifiesFiles() throws Exception {
+        write("a.ps1", "a".getBytes("UTF-8"));
+        write("b.bin", SmbUploaderTest.randomBytes(2 * BUFFER_SIZE));
+
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 4, 2,
+                SmbSync.Mode.OFF, true);
+        upload(upload, connect());
+
+        assertEquals(2, upload.getVerified());
+    }
+
+    @Test
+    public void retryResumesAfterDroppedConnection() throws Exception {
+        final byte[] large = SmbUploaderTest.randomBytes(8 * BUFFER_SIZE);
+        write("large.bin", large);
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 1, 1,
+                SmbSync.Mode.OFF, false);
+        server.dropConnectionAfterWrites(3);
+        try {
+            upload(upload, connect());
+            fail("Expected the dropped connection to fail the upload");
+        } catch (Exception e) {
+            assertTrue(SmbCircuitBreaker.isTransportFailure(e));
+        }
+        assertEquals(3 * BUFFER_SIZE, upload.getAcknowledged());
+
+        assertEquals(5 * BUFFER_SIZE, upload(upload, connect()));
+        assertArrayEquals(large, server.content(HOSTNAME, SHARE, "Temp\\rundeck\\large.bin"));
+        assertEquals(0, upload.getAcknowledged());
+    }
+
+    @Test
+    public void retrySkipsCompletedFiles() throws Exception {
+        write("a.bin", SmbUploaderTest.randomBytes(2 * BUFFER_SIZE));
+        write("b.bin", SmbUploaderTest.randomBytes(2 * BUFFER_SIZE));
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 1, 1,
+                SmbSync.Mode.OFF, false);
+        // a.bin completes, b.bin fails after its first chunk
+        server.dropConnectionAfterWrites(3);
+        try {
+            upload(upload, connect());
+            fail("Expected the dropped connection to fail the upload");
+        } catch (Exception e) {
+            assertTrue(SmbCircuitBreaker.isTransportFailure(e));
+        }
+
+        assertEquals(BUFFER_SIZE, upload(upload, connect()));
+        assertEquals(2 * BUFFER_SIZE, server.fileSize(HOSTNAME, SHARE, "Temp\\rundeck\\b.bin"));
+    }
+
+    @Test
+    public void failsAttemptWhoseWorkersDoNotStop() throws Exception {
+        final byte[] large = SmbUploaderTest.randomBytes(8 * BUFFER_SIZE);
+        write("a.bin", large);
+        // Opening a named pipe blocks until a writer opens it, and can't be interrupted
+        final File pipe = new File(folder.getRoot(), "b.pipe");
+        Assume.assumeTrue(mkfifo(pipe));
+
+        final SmbDirectoryUpload upload = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 1, 2,
+                SmbSync.Mode.OFF, false);
+        server.dropConnectionAfterWrites(3);
+        try {
+            upload(upload, connect());
+            fail("Expected the dropped connection to fail the upload");
+        } catch (Exception e) {
+            assertTrue(SmbCircuitBreaker.isTransportFailure(e));
+            final Throwable[] suppressed = e.getSuppressed();
+            assertTrue(suppressed.length > 0);
+            assertTrue(suppressed[suppressed.length - 1].getMessage().contains("did not stop"));
+        } finally {
+            // Let the stuck worker go
+            new FileOutputStream(pipe).close();
+        }
+
+        // The progress of the failed attempt is not resumed from
+        assertEquals(0, upload.getAcknowledged());
+        assertTrue(pipe.delete());
+        final SmbDirectoryUpload retry = new SmbDirectoryUpload(folder.getRoot(), BUFFER_SIZE, 1, 2,
+                SmbSync.Mode.OFF, false);
+        assertEquals(large.length, upload(retry, connect()));
+        assertTrue(Arrays.equals(large, server.content(HOSTNAME, SHARE, "Temp\\rundeck\\a.bin")));
+    }
+
+    private static boolean mkfifo(final File file) {
+        try {
+            return new ProcessBuilder("mkfifo", file.getAbsolutePath()).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
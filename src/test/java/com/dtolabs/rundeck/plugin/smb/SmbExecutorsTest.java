@@ -0,0 +1,230 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+
+/**
+ * Tests of {@link SmbExecutors}. The virtual thread checks depend on the JVM running the tests: below Java 19 they
+ * cover the platform thread fallback, and on Java 19 and 20 too unless preview features are enabled.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbExecutorsTest {
+
+    private static int javaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    /**
+     * Fails like Thread.ofVirtual on Java 19 and 20 without preview features enabled.
+     */
+    public static Object previewDisabled() {
+        throw new UnsupportedOperationException("Preview Features not enabled");
+    }
+
+    @Test
+    public void findsVirtualThreadsOnlyWhereJvmHasThem() {
+        if (javaVersion() >= 21) {
+            assertTrue(SmbExecutors.isVirtual());
+        } else if (javaVersion() < 19) {
+            assertFalse(SmbExecutors.isVirtual());
+        }
+    }
+
+    @Test
+    public void fallsBackWhereVirtualThreadsFail() throws Exception {
+        assertNull(SmbExecutors.virtualExecutor(SmbExecutorsTest.class.getMethod("previewDisabled"), "smb-test"));
+        assertNull(SmbExecutors.virtualExecutor(null, "smb-test"));
+    }
+
+    @Test
+    public void sharesBoundedPlatformThreadsWithoutVirtualThreads() throws Exception {
+        assumeFalse(SmbExecutors.isVirtual());
+        final ExecutorService executor = SmbExecutors.newSharedExecutor("smb-test");
+        try {
+            assertTrue(executor instanceof ThreadPoolExecutor);
+            assertEquals(SmbExecutors.MAX_SHARED_THREADS, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+
+            final Thread thread = SmbExecutors.submit(executor, Thread::currentThread).get(10, TimeUnit.SECONDS);
+            assertEquals("smb-test", thread.getName());
+            assertTrue(thread.isDaemon());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queuesTasksBeyondSharedThreads() throws Exception {
+        assumeFalse(SmbExecutors.isVirtual());
+        final ExecutorService executor = SmbExecutors.newSharedExecutor("smb-test");
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            final List<CompletableFuture<Boolean>> tasks = new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < SmbExecutors.MAX_SHARED_THREADS + 10; i++) {
+                tasks.add(SmbExecutors.submit(executor, () -> release.await(10, TimeUnit.SECONDS)));
+            }
+            assertEquals(SmbExecutors.MAX_SHARED_THREADS, ((ThreadPoolExecutor) executor).getPoolSize());
+            assertEquals(10, ((ThreadPoolExecutor) executor).getQueue().size());
+
+            release.countDown();
+            for (CompletableFuture<Boolean> task : tasks) {
+                assertTrue(task.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void limitsExecutorToMaximumConcurrency() throws Exception {
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-test", 2);
+        try {
+            assertConcurrencyLimit(executor, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void limitsThreadPerTaskExecutorToMaximumConcurrency() throws Exception {
+        // The executor used on virtual threads, here over platform threads
+        final ExecutorService executor = new SmbExecutors.LimitedExecutor(Executors.newCachedThreadPool(), 2);
+        try {
+            assertConcurrencyLimit(executor, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertConcurrencyLimit(final ExecutorService executor, final int limit) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<CompletableFuture<Integer>> tasks = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(SmbExecutors.submit(executor, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                return running.decrementAndGet();
+            }));
+        }
+        for (CompletableFuture<Integer> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(limit, maxRunning.get());
+    }
+
+    @Test
+    public void completesWithResultOrFailure() throws Exception {
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-test", 1);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        try {
+            assertEquals("done", SmbExecutors.submit(executor, () -> "done").get(10, TimeUnit.SECONDS));
+            try {
+                SmbExecutors.submit(executor, () -> {
+                    throw failure;
+                }).get(10, TimeUnit.SECONDS);
+                fail("Expected the task failure");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelInterruptsRunningTask() throws Exception {
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            final CompletableFuture<String> task = SmbExecutors.submit(executor, () -> {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "done";
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            assertTrue(task.cancel(false));
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertTrue(task.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelSkipsTaskNotYetStarted() throws Exception {
+        final ExecutorService executor = SmbExecutors.newExecutor("smb-test", 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        try {
+            final CompletableFuture<Boolean> first = SmbExecutors.submit(executor,
+                    () -> release.await(10, TimeUnit.SECONDS));
+            final CompletableFuture<Boolean> second = SmbExecutors.submit(executor, () -> ran.getAndSet(true));
+
+            assertTrue(second.cancel(false));
+            release.countDown();
+            assertTrue(first.get(10, TimeUnit.SECONDS));
+            // Queued behind the first on the single thread, so it has had its turn once this one ran
+            SmbExecutors.submit(executor, () -> null).get(10, TimeUnit.SECONDS);
+            assertFalse(ran.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void abandonsTaskInterruptedWhileWaitingForPermit() throws Exception {
+        final ExecutorService executor = new SmbExecutors.LimitedExecutor(Executors.newCachedThreadPool(), 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        final CompletableFuture<Boolean> first = SmbExecutors.submit(executor, () -> {
+            started.countDown();
+            return new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        final CompletableFuture<Boolean> waiting = SmbExecutors.submit(executor, () -> ran.getAndSet(true));
+
+        executor.shutdownNow();
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            fail("Expected the waiting task to be abandoned");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertFalse(ran.get());
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            fail("Expected the running task to be interrupted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+}
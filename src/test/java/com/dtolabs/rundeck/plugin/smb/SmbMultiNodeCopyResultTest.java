@@ -0,0 +1,82 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.dtolabs.rundeck.core.execution.service.FileCopierException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of gathering the outcome of a copy to many nodes, see {@link SmbFileCopier#collect(Map)}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbMultiNodeCopyResultTest {
+
+    @Test
+    public void collectsRemoteFilesInNodeOrder() throws Exception {
+        final Map<String, CompletableFuture<String>> copies = new LinkedHashMap<String, CompletableFuture<String>>();
+        copies.put("web2", CompletableFuture.completedFuture("C:\\temp\\b.ps1"));
+        copies.put("web1", CompletableFuture.completedFuture("C:\\temp\\a.ps1"));
+
+        final SmbMultiNodeCopyResult result = SmbFileCopier.collect(copies);
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList("web2", "web1"), Arrays.asList(result.getRemoteFiles().keySet().toArray()));
+        assertEquals("C:\\temp\\a.ps1", result.getRemoteFiles().get("web1"));
+    }
+
+    @Test
+    public void keepsFailuresApartFromSuccesses() throws Exception {
+        final FileCopierException failure = new FileCopierException("SMB file copy failed.",
+                SmbFileCopier.Reason.CopyFileFailed);
+        final Map<String, CompletableFuture<String>> copies = new LinkedHashMap<String, CompletableFuture<String>>();
+        copies.put("web1", CompletableFuture.completedFuture("C:\\temp\\a.ps1"));
+        copies.put("web2", failed(failure));
+        copies.put("web3", failed(new IOException("Connection reset")));
+
+        final SmbMultiNodeCopyResult result = SmbFileCopier.collect(copies);
+
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.getRemoteFiles().size());
+        assertSame(failure, result.getFailures().get("web2"));
+        // Anything other than a copier failure is wrapped into one
+        assertEquals(SmbFileCopier.Reason.CopyFileFailed, result.getFailures().get("web3").getFailureReason());
+        assertTrue(result.getFailures().get("web3").getCause() instanceof IOException);
+    }
+
+    @Test
+    public void cancelsRunningCopiesWhenInterrupted() throws Exception {
+        final Map<String, CompletableFuture<String>> copies = new LinkedHashMap<String, CompletableFuture<String>>();
+        copies.put("web1", CompletableFuture.completedFuture("C:\\temp\\a.ps1"));
+        copies.put("web2", new CompletableFuture<String>());
+        copies.put("web3", new CompletableFuture<String>());
+
+        Thread.currentThread().interrupt();
+        try {
+            SmbFileCopier.collect(copies);
+            fail("Expected the interrupted wait to fail");
+        } catch (FileCopierException e) {
+            assertTrue(Thread.interrupted());
+        }
+        assertFalse(copies.get("web1").isCancelled());
+        assertTrue(copies.get("web2").isCancelled());
+        assertTrue(copies.get("web3").isCancelled());
+    }
+
+    private static CompletableFuture<String> failed(final Throwable e) {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
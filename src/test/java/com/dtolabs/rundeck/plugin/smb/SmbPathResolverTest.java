@@ -0,0 +1,128 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbPathResolver}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbPathResolverTest {
+
+    private static void assertPath(
+            final String server,
+            final String shareName,
+            final String path,
+            final SmbRemotePath resolved
+    )
+    {
+        assertEquals(server, resolved.getServer());
+        assertEquals(shareName, resolved.getShareName());
+        assertEquals(path, resolved.getPath());
+    }
+
+    @Test
+    public void resolvesDrivePathToAdministrativeShare() {
+        final SmbPathResolver resolver = SmbPathResolver.forShares("");
+
+        assertPath(null, "C$", "Windows\\Temp\\script.ps1", resolver.parse("C:\\Windows\\Temp\\script.ps1"));
+        assertPath(null, "d$", "script.ps1", resolver.parse("d:\\script.ps1"));
+        assertPath(null, "C$", "", resolver.parse("C:"));
+    }
+
+    @Test
+    public void resolvesUncPath() {
+        final SmbPathResolver resolver = SmbPathResolver.forShares("");
+
+        assertPath("fileserver", "data", "dir\\file.zip", resolver.parse("\\\\fileserver\\data\\dir\\file.zip"));
+        assertPath("fileserver", "data", "", resolver.parse("\\\\fileserver\\data"));
+        assertPath("fileserver", "data", "file.zip", resolver.parse("//fileserver/data/file.zip"));
+    }
+
+    @Test
+    public void resolvesMappedPathThroughLongestMatch() {
+        final SmbPathResolver resolver = SmbPathResolver.forShares("D:=data, D:\\deploy\\=deploy,E:/apps=apps");
+
+        assertPath(null, "deploy", "app\\setup.exe", resolver.parse("D:\\deploy\\app\\setup.exe"));
+        assertPath(null, "deploy", "setup.exe", resolver.parse("d:\\DEPLOY\\setup.exe"));
+        assertPath(null, "data", "deployment\\setup.exe", resolver.parse("D:\\deployment\\setup.exe"));
+        assertPath(null, "apps", "x", resolver.parse("E:\\apps\\x"));
+        assertPath(null, "C$", "deploy\\x", resolver.parse("C:\\deploy\\x"));
+    }
+
+    @Test
+    public void normalizesSeparators() {
+        final SmbPathResolver resolver = SmbPathResolver.forShares("");
+
+        assertPath(null, "C$", "Temp\\dir\\file", resolver.parse("C:/Temp//dir\\\\file\\"));
+        assertPath(null, "C$", "Temp", resolver.parse("C:\\\\Temp\\\\"));
+    }
+
+    @Test
+    public void rejectsOtherPaths() {
+        final SmbPathResolver resolver = SmbPathResolver.forShares("");
+        for (String path : new String[]{"/tmp/script.sh", "Temp\\file", "C:file", "\\\\server", "\\\\\\share",
+                "1:\\file"}) {
+            try {
+                resolver.parse(path);
+                fail("Expected " + path + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidMappings() {
+        for (String shares : new String[]{"deploy", "D:\\deploy=", "deploy=deploy", "D:\\deploy=a\\b"}) {
+            try {
+                SmbPathResolver.parseShares(shares);
+                fail("Expected " + shares + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Not a valid share mapping"));
+            }
+        }
+    }
+
+    @Test
+    public void cachesResolvedPaths() {
+        final SmbPathResolver resolver = new SmbPathResolver(SmbPathResolver.parseShares(""), 2);
+        final SmbRemotePath first = resolver.resolve("C:\\Temp\\a");
+
+        assertSame(first, resolver.resolve("C:\\Temp\\a"));
+        resolver.resolve("C:\\Temp\\b");
+        resolver.resolve("C:\\Temp\\c");
+        // Evicted as the least recently used of more than two
+        assertNotSame(first, resolver.resolve("C:\\Temp\\a"));
+    }
+
+    @Test
+    public void sharesResolverBetweenNodesWithSameMappings() {
+        assertSame(SmbPathResolver.forShares("D:\\deploy=deploy"), SmbPathResolver.forShares(" D:\\deploy=deploy "));
+        assertSame(SmbPathResolver.forShares(""), SmbPathResolver.forShares(null));
+    }
+
+    @Test
+    public void needsNoRundeckClasses() throws Exception {
+        final Class<?> type = SmbClientSettingsTest.loadWithoutRundeck(SmbPathResolver.class.getName());
+        final Method forShares = type.getDeclaredMethod("forShares", String.class);
+        forShares.setAccessible(true);
+        final Object resolver = forShares.invoke(null, "D:\\deploy=deploy");
+        final Method parse = type.getDeclaredMethod("parse", String.class);
+        parse.setAccessible(true);
+        final Object resolved = parse.invoke(resolver, "D:\\deploy\\app\\setup.exe");
+        final Method getShareName = resolved.getClass().getDeclaredMethod("getShareName");
+        getShareName.setAccessible(true);
+
+        assertEquals("deploy", getShareName.invoke(resolved));
+    }
+}
@@ -0,0 +1,113 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbPayload}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbPayloadTest {
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static byte[] read(final InputStream input) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void streamCanOnlyBeReadOnce() throws IOException {
+        final SmbPayload payload = SmbPayload.forStream(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+        assertTrue(payload.isReplayable());
+        assertEquals(-1, payload.length());
+
+        assertArrayEquals("abc".getBytes("UTF-8"), read(payload.openStream()));
+        assertFalse(payload.isReplayable());
+        try {
+            payload.openStream();
+            fail("Expected a consumed stream not to be opened again");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void bytesAreReplayableFromAnyOffset() throws IOException {
+        final SmbPayload payload = SmbPayload.forBytes("abcdef".getBytes("UTF-8"), "script");
+        assertEquals(6, payload.length());
+        assertArrayEquals("abcdef".getBytes("UTF-8"), read(payload.openStream()));
+        assertArrayEquals("def".getBytes("UTF-8"), read(payload.openStream(3)));
+        assertTrue(payload.isReplayable());
+    }
+
+    @Test
+    public void offsetPastTheEndReadsNothing() throws IOException {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+        assertEquals(0, read(payload.openStream(4)).length);
+    }
+
+    @Test
+    public void fileIsDeletedOnReleaseOnlyWhenAsked() throws IOException {
+        final File kept = write("kept", "abc");
+        final SmbPayload keptPayload = SmbPayload.forFile(kept, false);
+        assertEquals(3, keptPayload.length());
+        assertTrue(keptPayload.release());
+        assertTrue(kept.exists());
+
+        final File temp = write("temp", "abc");
+        assertTrue(SmbPayload.forFile(temp, true).release());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void digestIsComputedOnceOnDemand() throws IOException {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+        assertNull(payload.getKnownSha256());
+        assertEquals(ABC_SHA256, payload.getSha256());
+        assertEquals(ABC_SHA256, payload.getKnownSha256());
+        // A digest recorded during an upload doesn't replace one already known
+        payload.setSha256("other");
+        assertEquals(ABC_SHA256, payload.getSha256());
+    }
+
+    private File write(final String name, final String content) throws IOException {
+        final File file = folder.newFile(name);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
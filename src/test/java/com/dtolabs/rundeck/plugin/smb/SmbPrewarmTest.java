@@ -0,0 +1,73 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbPrewarm}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbPrewarmTest {
+
+    @Test
+    public void beginsOncePerExecution() {
+        final SmbPrewarm prewarm = new SmbPrewarm(10);
+
+        assertTrue(prewarm.begin("1"));
+        assertFalse(prewarm.begin("1"));
+        assertTrue(prewarm.begin("2"));
+        assertFalse(prewarm.begin("1"));
+    }
+
+    @Test
+    public void forgetsLeastRecentlyStartedExecution() {
+        final SmbPrewarm prewarm = new SmbPrewarm(2);
+        prewarm.begin("1");
+        prewarm.begin("2");
+        prewarm.begin("1");
+        prewarm.begin("3");
+
+        assertFalse(prewarm.begin("1"));
+        assertTrue(prewarm.begin("2"));
+    }
+
+    @Test
+    public void startsEveryNodeWithoutWaiting() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Runnable> nodes = new ArrayList<Runnable>();
+        for (int i = 0; i < 5; i++) {
+            nodes.add(() -> {
+                final int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        // Returns while all nodes are still held
+        new SmbPrewarm(10).start(nodes, 2);
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+}
@@ -0,0 +1,120 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbScriptCache}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbScriptCacheTest {
+    private static final long MAX_BYTES = 4L * 1024 * 1024;
+    private static final long IDLE_TTL = 60000;
+    private static final String EOL = System.getProperty("line.separator");
+
+    private static String script(final int length, final char fill) {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, fill);
+        return new String(chars);
+    }
+
+    @Test
+    public void sharesPayloadWithinExecution() throws IOException {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+        final SmbPayload payload = cache.payload("1", "Write-Host hello");
+
+        // An equal script built separately still hits the cache
+        assertSame(payload, cache.payload("1", new String("Write-Host hello".toCharArray())));
+        assertArrayEquals(("Write-Host hello" + EOL).getBytes("UTF-8"), SmbPayloadTest.read(payload.openStream()));
+    }
+
+    @Test
+    public void doesNotSharePayloadBetweenExecutions() {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+
+        assertNotSame(cache.payload("1", "Write-Host hello"), cache.payload("2", "Write-Host hello"));
+        assertNotSame(cache.payload("1", "Write-Host hello"), cache.payload("1", "Write-Host world"));
+    }
+
+    @Test
+    public void doesNotSharePayloadWithoutExecution() {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+
+        assertNotSame(cache.payload(null, "Write-Host hello"), cache.payload(null, "Write-Host hello"));
+    }
+
+    @Test
+    public void holdsLargeScriptOutsideHeap() throws IOException {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+        final String script = script(2 * 1024 * 1024, 'x');
+        final SmbPayload payload = cache.payload("1", script);
+
+        assertTrue(payload instanceof SmbPayload.BufferPayload);
+        assertEquals(script.length() + EOL.length(), payload.length());
+        assertArrayEquals((script + EOL).getBytes("UTF-8"), SmbPayloadTest.read(payload.openStream()));
+    }
+
+    @Test
+    public void streamsOfSharedBufferReadIndependently() throws IOException {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, IDLE_TTL);
+        final byte[] bytes = (script(1024 * 1024, 'a') + script(1024 * 1024, 'b')).getBytes();
+        final SmbPayload payload = cache.payload("1", new String(bytes));
+
+        final InputStream first = payload.openStream();
+        final InputStream second = payload.openStream(1024 * 1024);
+        assertEquals('a', first.read());
+        assertEquals('b', second.read());
+        assertEquals('a', first.read());
+        assertEquals(bytes.length + EOL.length(), SmbPayloadTest.read(payload.openStream()).length);
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void convertsLineEndings() throws IOException {
+        assertArrayEquals("a\r\nb\r\nc\r\n\r\n".getBytes("UTF-8"), SmbScriptCache.encode("a\nb\r\nc\r\r\n", "\r\n"));
+        assertArrayEquals("a\nb\n".getBytes("UTF-8"), SmbScriptCache.encode("a\r\nb", "\n"));
+        assertArrayEquals(new byte[0], SmbScriptCache.encode("", "\n"));
+    }
+
+    @Test
+    public void encodesAsUtf8() throws IOException {
+        final SmbPayload payload = new SmbScriptCache(MAX_BYTES, IDLE_TTL).payload("1", "Write-Host \u00e6\u00f8\u00e5");
+
+        assertArrayEquals(("Write-Host \u00e6\u00f8\u00e5" + EOL).getBytes("UTF-8"), SmbPayloadTest.read(payload.openStream()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondLimit() {
+        final SmbScriptCache cache = new SmbScriptCache(3000, IDLE_TTL);
+        final SmbPayload first = cache.payload("1", script(1000, 'a'));
+        final SmbPayload second = cache.payload("1", script(1000, 'b'));
+        cache.payload("1", script(1000, 'a'));
+        cache.payload("1", script(1500, 'c'));
+
+        assertSame(first, cache.payload("1", script(1000, 'a')));
+        assertNotSame(second, cache.payload("1", script(1000, 'b')));
+    }
+
+    @Test
+    public void evictsIdleEntries() throws Exception {
+        final SmbScriptCache cache = new SmbScriptCache(MAX_BYTES, 20);
+        final SmbPayload payload = cache.payload("1", "Write-Host hello");
+        Thread.sleep(50);
+        // Idle entries are removed when another script is added
+        cache.payload("2", "Write-Host world");
+
+        assertNotSame(payload, cache.payload("1", "Write-Host hello"));
+    }
+}
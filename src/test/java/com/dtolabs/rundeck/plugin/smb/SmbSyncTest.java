@@ -0,0 +1,174 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbSync} against the in-process {@link FakeSmbServer}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbSyncTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+    private static final long HOUR = 3600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSmbServer server;
+    private Connection connection;
+    private DiskShare share;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSmbServer(0, true);
+        connection = new SMBClient(server.config()).connect(HOSTNAME);
+        share = (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.close(true);
+    }
+
+    private void upload(final SmbPayload payload, final String path) throws Exception {
+        new SmbUploader(64 * 1024, 1).upload(share, path, payload, null);
+    }
+
+    private File localFile(final String content, final long modified) throws IOException {
+        final File file = folder.newFile();
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+
+    @Test
+    public void parsesModeNames() {
+        assertEquals(SmbSync.Mode.OFF, SmbSync.Mode.forName("off"));
+        assertEquals(SmbSync.Mode.SIZE_TIME, SmbSync.Mode.forName(" Size-Time "));
+        assertEquals(SmbSync.Mode.HASH, SmbSync.Mode.forName("HASH"));
+        try {
+            SmbSync.Mode.forName("mtime");
+            fail("Expected an unknown mode to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void offModeAlwaysUploads() throws Exception {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+        upload(payload, "script.ps1");
+
+        assertFalse(new SmbSync(SmbSync.Mode.OFF, payload).isCurrent(share, "script.ps1"));
+    }
+
+    @Test
+    public void missingRemoteFileIsNotCurrent() throws Exception {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+
+        assertFalse(new SmbSync(SmbSync.Mode.HASH, payload).isCurrent(share, "script.ps1"));
+        assertFalse(new SmbSync(SmbSync.Mode.HASH, payload).isCurrent(share, "missing\\script.ps1"));
+    }
+
+    @Test
+    public void sizeTimeModeComparesSizeAndModificationTime() throws Exception {
+        final long modified = System.currentTimeMillis() - HOUR;
+        final File local = localFile("Write-Host hello", modified);
+        final SmbSync sync = new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(local, false));
+        upload(SmbPayload.forFile(local, false), "script.ps1");
+        // Written now, not at the local modification time
+        assertFalse(sync.isCurrent(share, "script.ps1"));
+
+        sync.uploaded(share, "script.ps1");
+        assertEquals(modified, share.getFileInformation("script.ps1").getBasicInformation().getLastWriteTime()
+                .toEpochMillis());
+        assertTrue(sync.isCurrent(share, "script.ps1"));
+
+        // Within the timestamp resolution of the remote file system
+        final File rounded = localFile("Write-Host hello", modified + SmbSync.TIME_RESOLUTION / 2);
+        assertTrue(new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(rounded, false))
+                .isCurrent(share, "script.ps1"));
+
+        // Modified locally since the upload
+        final File newer = localFile("Write-Host hello", modified + HOUR);
+        assertFalse(new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(newer, false))
+                .isCurrent(share, "script.ps1"));
+
+        // A different size
+        final File longer = localFile("Write-Host hello world", modified);
+        assertFalse(new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(longer, false))
+                .isCurrent(share, "script.ps1"));
+    }
+
+    @Test
+    public void sizeTimeModeUploadsOlderFileOfSameSize() throws Exception {
+        final File current = localFile("Write-Host hello", System.currentTimeMillis());
+        final SmbSync sync = new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(current, false));
+        upload(SmbPayload.forFile(current, false), "script.ps1");
+        sync.uploaded(share, "script.ps1");
+
+        // Such as an older revision unpacked from an archive, which keeps its modification time
+        final File older = localFile("Write-Host world", System.currentTimeMillis() - HOUR);
+        assertFalse(new SmbSync(SmbSync.Mode.SIZE_TIME, SmbPayload.forFile(older, false))
+                .isCurrent(share, "script.ps1"));
+    }
+
+    @Test
+    public void sizeTimeModeUploadsPayloadsWithoutModificationTime() throws Exception {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+        upload(payload, "script.ps1");
+
+        assertFalse(new SmbSync(SmbSync.Mode.SIZE_TIME, payload).isCurrent(share, "script.ps1"));
+    }
+
+    @Test
+    public void hashModeComparesStoredDigest() throws Exception {
+        final SmbPayload payload = SmbPayload.forBytes("abc".getBytes("UTF-8"), "script");
+        final SmbSync sync = new SmbSync(SmbSync.Mode.HASH, payload);
+        upload(payload, "script.ps1");
+        // No digest stored yet
+        assertFalse(sync.isCurrent(share, "script.ps1"));
+
+        sync.uploaded(share, "script.ps1");
+        assertTrue(new SmbSync(SmbSync.Mode.HASH, SmbPayload.forBytes("abc".getBytes("UTF-8"), "script"))
+                .isCurrent(share, "script.ps1"));
+        // Same size, other content
+        assertFalse(new SmbSync(SmbSync.Mode.HASH, SmbPayload.forBytes("abd".getBytes("UTF-8"), "script"))
+                .isCurrent(share, "script.ps1"));
+    }
+
+    @Test
+    public void streamsAreAlwaysUploaded() throws Exception {
+        upload(SmbPayload.forBytes("abc".getBytes("UTF-8"), "script"), "script.ps1");
+
+        assertFalse(new SmbSync(SmbSync.Mode.HASH, SmbPayload.forStream(
+                new ByteArrayInputStream("abc".getBytes("UTF-8")))).isCurrent(share, "script.ps1"));
+    }
+}
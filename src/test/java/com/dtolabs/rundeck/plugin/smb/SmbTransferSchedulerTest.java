@@ -0,0 +1,252 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests of {@link SmbTransferScheduler}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbTransferSchedulerTest {
+
+    private static SmbTransferScheduler.Ticket admit(
+            final SmbTransferScheduler scheduler,
+            final String executionId,
+            final String hostname,
+            final String site,
+            final int maxTransfers
+    ) throws InterruptedException
+    {
+        return scheduler.admit(executionId, hostname, site, maxTransfers, 0, 0, 0);
+    }
+
+    @Test
+    public void limitsTransfersPerHost() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 1);
+        final Admission waiting = Admission.start(scheduler, "1", "HOST1", null, 1);
+
+        // Other hosts have slots of their own
+        scheduler.release(admit(scheduler, "1", "host2", null, 1));
+        assertNull(waiting.ticket);
+
+        scheduler.release(first);
+        assertNotNull(waiting.admitted());
+        assertEquals(1, scheduler.getActive());
+    }
+
+    @Test
+    public void limitsTransfersPerSite() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", "wan", 1);
+        final Admission waiting = Admission.start(scheduler, "1", "host2", "WAN", 1);
+
+        scheduler.release(first);
+        assertNotNull(waiting.admitted());
+    }
+
+    @Test
+    public void laterTransferDoesNotLiftLimitOfOthers() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 1);
+        final Admission waiting = Admission.start(scheduler, "1", "host1", null, 1);
+
+        // A transfer to another host configured without a limit
+        final SmbTransferScheduler.Ticket unlimited = admit(scheduler, "2", "host2", null, 0);
+        assertNull(waiting.ticket);
+        // A transfer configured with a higher limit for the host starts, the waiting one still waits for its own
+        final SmbTransferScheduler.Ticket higher = admit(scheduler, "2", "host1", null, 3);
+        assertNull(waiting.ticket);
+
+        scheduler.release(unlimited);
+        scheduler.release(higher);
+        scheduler.release(first);
+        assertNotNull(waiting.admitted());
+    }
+
+    @Test
+    public void servesExecutionsInTurn() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 1);
+        final Admission second = Admission.start(scheduler, "1", "host1", null, 1);
+        final Admission third = Admission.start(scheduler, "1", "host1", null, 1);
+        final Admission other = Admission.start(scheduler, "2", "host1", null, 1);
+
+        scheduler.release(first);
+        scheduler.release(second.admitted());
+        // The other execution goes before the third transfer of the first one
+        final SmbTransferScheduler.Ticket turn = other.admitted();
+        assertNull(third.ticket);
+        scheduler.release(turn);
+        assertNotNull(third.admitted());
+    }
+
+    @Test
+    public void waitingTransferDoesNotHoldBackOtherHosts() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 1);
+        final Admission waiting = Admission.start(scheduler, "1", "host1", null, 1);
+        final Admission next = Admission.start(scheduler, "1", "host2", null, 1);
+
+        assertNotNull(next.admitted());
+        assertNull(waiting.ticket);
+        scheduler.release(first);
+        assertNotNull(waiting.admitted());
+    }
+
+    @Test
+    public void interruptedTransferLeavesQueue() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 1);
+        final Admission waiting = Admission.start(scheduler, "1", "host1", null, 1);
+        waiting.interrupt();
+        waiting.join(10000);
+
+        assertTrue(waiting.failure instanceof InterruptedException);
+        assertEquals(0, scheduler.getWaiting());
+        scheduler.release(first);
+        assertEquals(0, scheduler.getActive());
+        assertEquals(0, scheduler.getScopes());
+    }
+
+    @Test
+    public void releasingTwiceFreesOneSlot() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = admit(scheduler, "1", "host1", null, 2);
+        admit(scheduler, "1", "host1", null, 2);
+        scheduler.release(first);
+        scheduler.release(first);
+
+        assertEquals(1, scheduler.getActive());
+    }
+
+    @Test
+    public void dropsStateOfIdleHostsAndSites() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        for (int i = 0; i < 100; i++) {
+            scheduler.release(admit(scheduler, "1", "host" + i, "site" + i, 1));
+        }
+        assertEquals(0, scheduler.getScopes());
+
+        // A bucket that has not refilled yet is kept, so that a new transfer can't exceed the rate
+        final SmbTransferScheduler.Ticket throttled = scheduler.admit("1", "host1", null, 0, 0, 0, 1000);
+        throttled.acquire(600);
+        scheduler.release(throttled);
+        assertEquals(1, scheduler.getScopes());
+
+        Thread.sleep(1100);
+        scheduler.release(admit(scheduler, "1", "host2", null, 0));
+        assertEquals(0, scheduler.getScopes());
+    }
+
+    @Test
+    public void throttlesToHostRate() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket ticket = scheduler.admit("1", "host1", null, 0, 0, 0, 100000);
+        try {
+            // A new bucket is full
+            long start = System.nanoTime();
+            ticket.acquire(100000);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+
+            start = System.nanoTime();
+            ticket.acquire(50000);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+        } finally {
+            scheduler.release(ticket);
+        }
+    }
+
+    @Test
+    public void siteBucketIsSharedByItsHosts() throws Exception {
+        final SmbTransferScheduler scheduler = new SmbTransferScheduler();
+        final SmbTransferScheduler.Ticket first = scheduler.admit("1", "host1", "wan", 0, 0, 100000, 0);
+        final SmbTransferScheduler.Ticket second = scheduler.admit("2", "host2", "wan", 0, 0, 100000, 0);
+        try {
+            first.acquire(100000);
+            final long start = System.nanoTime();
+            second.acquire(50000);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+        } finally {
+            scheduler.release(first);
+            scheduler.release(second);
+        }
+    }
+
+    /**
+     * A transfer admitted on its own thread.
+     */
+    private static class Admission extends Thread {
+        private final SmbTransferScheduler scheduler;
+        private final String executionId;
+        private final String hostname;
+        private final String site;
+        private final int maxTransfers;
+        private volatile SmbTransferScheduler.Ticket ticket;
+        private volatile Exception failure;
+
+        private Admission(
+                final SmbTransferScheduler scheduler,
+                final String executionId,
+                final String hostname,
+                final String site,
+                final int maxTransfers
+        )
+        {
+            this.scheduler = scheduler;
+            this.executionId = executionId;
+            this.hostname = hostname;
+            this.site = site;
+            this.maxTransfers = maxTransfers;
+            setDaemon(true);
+        }
+
+        /**
+         * @return the admission, once it is waiting for a slot or admitted
+         */
+        static Admission start(
+                final SmbTransferScheduler scheduler,
+                final String executionId,
+                final String hostname,
+                final String site,
+                final int maxTransfers
+        ) throws InterruptedException
+        {
+            final Admission admission = new Admission(scheduler, executionId, hostname, site, maxTransfers);
+            final int waiting = scheduler.getWaiting();
+            admission.start();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (scheduler.getWaiting() == waiting && admission.isAlive() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            return admission;
+        }
+
+        public void run() {
+            try {
+                ticket = scheduler.admit(executionId, hostname, site, maxTransfers, 0, 0, 0);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * @return the ticket, after waiting for the admission to complete
+         */
+        SmbTransferScheduler.Ticket admitted() throws InterruptedException {
+            join(10000);
+            assertNull(failure);
+            assertSame(State.TERMINATED, getState());
+            return ticket;
+        }
+    }
+}
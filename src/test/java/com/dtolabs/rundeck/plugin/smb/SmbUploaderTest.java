@@ -0,0 +1,166 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbUploader} against the in-process {@link FakeSmbServer}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbUploaderTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+
+    private FakeSmbServer server;
+    private SMBClient client;
+    private Connection connection;
+    private DiskShare share;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSmbServer(0, true);
+        client = new SMBClient(server.config());
+        share = connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.close(true);
+    }
+
+    private DiskShare connect() throws IOException {
+        connection = client.connect(HOSTNAME);
+        return (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+    }
+
+    static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void streamsInputWithoutKnownLength() throws Exception {
+        final byte[] content = randomBytes(300 * 1024);
+        final SmbUploader uploader = new SmbUploader(64 * 1024, 1);
+
+        final long written = uploader.upload(share, "script.ps1",
+                SmbPayload.forStream(new ByteArrayInputStream(content)), null);
+
+        assertEquals(content.length, written);
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "script.ps1"));
+    }
+
+    @Test
+    public void replacesExistingFile() throws Exception {
+        new SmbUploader(64 * 1024, 1).upload(share, "script.ps1", SmbPayload.forBytes(randomBytes(100000), "old"),
+                null);
+
+        final byte[] content = "Write-Host hello".getBytes("UTF-8");
+        new SmbUploader(64 * 1024, 1).upload(share, "script.ps1", SmbPayload.forBytes(content, "new"), null);
+
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "script.ps1"));
+    }
+
+    @Test
+    public void uploadsEmptyPayload() throws Exception {
+        final long written = new SmbUploader(64 * 1024, 1).upload(share, "empty.txt",
+                SmbPayload.forBytes(new byte[0], "empty"), null);
+
+        assertEquals(0, written);
+        assertEquals(0, server.fileSize(HOSTNAME, SHARE, "empty.txt"));
+    }
+
+    @Test
+    public void pipelinesLargeWritesOverSlowLink() throws Exception {
+        tearDown();
+        // One millisecond per round-trip, so that writes overlap
+        server = new FakeSmbServer(1000, true);
+        client = new SMBClient(server.config());
+        share = connect();
+        final byte[] content = randomBytes(3 * 1024 * 1024 + 100);
+
+        final long written = new SmbUploader(1024 * 1024, 8).upload(share, "large.bin",
+                SmbPayload.forBytes(content, "large"), null);
+
+        assertEquals(content.length, written);
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "large.bin"));
+        // Each chunk goes out as one multi-credit request
+        assertEquals(4, server.getWrites());
+    }
+
+    @Test
+    public void writesSequentiallyWithOneOutstanding() throws Exception {
+        final byte[] content = randomBytes(1024 * 1024);
+
+        new SmbUploader(64 * 1024, 1).upload(share, "sequential.bin", SmbPayload.forBytes(content, "sequential"),
+                null);
+
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "sequential.bin"));
+        assertEquals(16, server.getWrites());
+    }
+
+    @Test
+    public void resumesFromVerifiedOffsetAfterConnectionDrop() throws Exception {
+        final byte[] content = randomBytes(1024 * 1024);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        final SmbUploader uploader = new SmbUploader(64 * 1024, 1);
+        server.dropConnectionAfterWrites(3);
+        try {
+            uploader.upload(share, "large.bin", payload, null);
+            fail("Expected the upload to fail when the connection drops");
+        } catch (Exception e) {
+            // Closing the file on the dead connection must not hide the transport error
+            assertTrue(e.toString(), SmbCircuitBreaker.isTransportFailure(e));
+        }
+        assertEquals(3 * 64 * 1024, uploader.getAcknowledged());
+
+        share = connect();
+        final long written = uploader.upload(share, "large.bin", payload, null);
+
+        assertEquals(3 * 64 * 1024, uploader.getResumedFrom());
+        assertEquals(content.length - 3 * 64 * 1024, written);
+        assertEquals(16, server.getWrites());
+        assertArrayEquals(content, server.content(HOSTNAME, SHARE, "large.bin"));
+    }
+
+    @Test
+    public void startsOverWhenWrittenBytesDontMatch() throws Exception {
+        final byte[] content = randomBytes(512 * 1024);
+        final SmbUploader uploader = new SmbUploader(64 * 1024, 1);
+        server.dropConnectionAfterWrites(2);
+        try {
+            uploader.upload(share, "large.bin", SmbPayload.forBytes(content, "large"), null);
+            fail("Expected the upload to fail when the connection drops");
+        } catch (Exception e) {
+            assertTrue(e.toString(), SmbCircuitBreaker.isTransportFailure(e));
+        }
+
+        // The retry sends other content just before the offset written up to
+        final byte[] changed = content.clone();
+        changed[100 * 1024] ^= 1;
+        share = connect();
+        final long written = uploader.upload(share, "large.bin", SmbPayload.forBytes(changed, "changed"), null);
+
+        assertEquals(0, uploader.getResumedFrom());
+        assertEquals(changed.length, written);
+        assertArrayEquals(changed, server.content(HOSTNAME, SHARE, "large.bin"));
+    }
+}
@@ -0,0 +1,146 @@
+package com.dtolabs.rundeck.plugin.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests of {@link SmbVerifier} against the in-process {@link FakeSmbServer}.
+ *
+ * @author Espen Blikstad <a href="mailto:espen@blikstad.no">espen@blikstad.no</a>
+ */
+public class SmbVerifierTest {
+    private static final String HOSTNAME = "127.0.0.1";
+    private static final String SHARE = "C$";
+
+    private FakeSmbServer server;
+    private Connection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != connection) {
+            connection.close(true);
+        }
+    }
+
+    private DiskShare connect(final long latencyMicros) throws IOException {
+        server = new FakeSmbServer(latencyMicros, true);
+        connection = new SMBClient(server.config()).connect(HOSTNAME);
+        return (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+    }
+
+    private static String sha256(final byte[] content) {
+        return SmbPayload.hex(SmbVerifier.newDigest().digest(content));
+    }
+
+    @Test
+    public void verifiesUploadWithDigestComputedWhileSending() throws Exception {
+        final DiskShare share = connect(0);
+        final byte[] content = SmbUploaderTest.randomBytes(300 * 1024 + 7);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        new SmbUploader(64 * 1024, 4, true).upload(share, "large.bin", payload, null);
+
+        assertEquals(sha256(content), payload.getKnownSha256());
+        assertEquals(sha256(content), new SmbVerifier(64 * 1024, 4).verify(share, "large.bin", payload));
+    }
+
+    @Test
+    public void readsBackOverSlowLinkInParallel() throws Exception {
+        // One millisecond per round-trip, so that reads overlap
+        final DiskShare share = connect(1000);
+        final byte[] content = SmbUploaderTest.randomBytes(2 * 1024 * 1024 + 100);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        new SmbUploader(1024 * 1024, 8, true).upload(share, "large.bin", payload, null);
+
+        assertEquals(sha256(content), new SmbVerifier(64 * 1024, 8).verify(share, "large.bin", payload));
+        assertEquals(sha256(content), new SmbVerifier(64 * 1024, 1).digest(share, "large.bin"));
+    }
+
+    @Test
+    public void verifiesEmptyFile() throws Exception {
+        final DiskShare share = connect(0);
+        final SmbPayload payload = SmbPayload.forBytes(new byte[0], "empty");
+        new SmbUploader(64 * 1024, 4, true).upload(share, "empty.txt", payload, null);
+
+        assertEquals(sha256(new byte[0]), new SmbVerifier(64 * 1024, 4).verify(share, "empty.txt", payload));
+    }
+
+    @Test
+    public void verifiesResumedUploadAgainstLocalContent() throws Exception {
+        DiskShare share = connect(0);
+        final byte[] content = SmbUploaderTest.randomBytes(512 * 1024);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        final SmbUploader uploader = new SmbUploader(64 * 1024, 1, true);
+        server.dropConnectionAfterWrites(3);
+        try {
+            uploader.upload(share, "large.bin", payload, null);
+            fail("Expected the upload to fail when the connection drops");
+        } catch (Exception e) {
+            assertTrue(e.toString(), SmbCircuitBreaker.isTransportFailure(e));
+        }
+        connection.close(true);
+        connection = new SMBClient(server.config()).connect(HOSTNAME);
+        share = (DiskShare) connection.authenticate(new AuthenticationContext("rundeck", "secret".toCharArray(),
+                "WORKGROUP")).connectShare(SHARE);
+        uploader.upload(share, "large.bin", payload, null);
+
+        assertTrue(uploader.getResumedFrom() > 0);
+        assertEquals(sha256(content), new SmbVerifier(64 * 1024, 4).verify(share, "large.bin", payload));
+    }
+
+    @Test
+    public void rejectsChangedRemoteContent() throws Exception {
+        final DiskShare share = connect(0);
+        final byte[] content = SmbUploaderTest.randomBytes(200 * 1024);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        new SmbUploader(64 * 1024, 4, true).upload(share, "large.bin", payload, null);
+        final File file = SmbUploader.openForWrite(share, "large.bin");
+        try {
+            final byte[] changed = content.clone();
+            changed[150 * 1024] ^= 1;
+            file.write(changed, 0);
+        } finally {
+            file.close();
+        }
+
+        try {
+            new SmbVerifier(64 * 1024, 4).verify(share, "large.bin", payload);
+            fail("Expected the changed content to fail verification");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(sha256(content)));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedRemoteFile() throws Exception {
+        final DiskShare share = connect(0);
+        final byte[] content = SmbUploaderTest.randomBytes(200 * 1024);
+        final SmbPayload payload = SmbPayload.forBytes(content, "large");
+        new SmbUploader(64 * 1024, 4, true).upload(share, "large.bin", payload, null);
+        final File file = SmbUploader.openForWrite(share, "large.bin");
+        try {
+            file.write(content, 0, 0, 100 * 1024);
+        } finally {
+            file.close();
+        }
+
+        try {
+            new SmbVerifier(64 * 1024, 4).verify(share, "large.bin", payload);
+            fail("Expected the truncated file to fail verification");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}